@@ -0,0 +1,158 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * ChunkedQuery objects split a LookbackQuery with a long $in list, such as thousands of
+ * ObjectIDs, into queries over chunks of the list that are paged through concurrently and
+ * merged into one iterator. Obtain one from LookbackQuery's chunkInClauses method:
+ *
+ *      Map in = new HashMap();
+ *      in.put("$in", objectIds);
+ *      SnapshotIterator snapshots = api.newSnapshotQuery()
+ *                                      .addFindClause("ObjectID", in)
+ *                                      .chunkInClauses(1000)
+ *                                      .iterateAll(8);
+ *
+ * The longest top level $in list over the limit is split into chunks of equal size, with
+ * duplicate values dropped. Snapshots are returned a page at a time in the order pages
+ * arrive. A snapshot can match more than one chunk when the field holds an array, such as
+ * _ItemHierarchy, iterate with distinct set to skip the repeats.
+ */
+public class ChunkedQuery {
+
+    static final int DEFAULT_MAX_VALUES = 1000;
+
+    LookbackApi api;
+    LookbackQuery baseQuery;
+    int maxValuesPerChunk;
+
+    private String chunkedField;
+    private List<LookbackQuery> chunks;
+
+    ChunkedQuery(LookbackApi api, LookbackQuery baseQuery, int maxValuesPerChunk) {
+        if (maxValuesPerChunk < 1) {
+            throw new LookbackException("Chunks must hold at least 1 value");
+        }
+        this.api = api;
+        this.baseQuery = baseQuery;
+        this.maxValuesPerChunk = maxValuesPerChunk;
+    }
+
+    /**
+     * Get the queries for each chunk. Each chunk can be executed and paged through on its own.
+     * @return List - one query per chunk, or the query itself if no $in list is over the limit
+     */
+    public synchronized List<LookbackQuery> getChunkQueries() {
+        if (chunks == null) {
+            chunks = planChunks();
+        }
+        return chunks;
+    }
+
+    /**
+     * @return String - the field whose $in list was split, or null if none was over the limit
+     */
+    public synchronized String getChunkedField() {
+        getChunkQueries();
+        return chunkedField;
+    }
+
+    /**
+     * Page through every chunk concurrently, as many at once as the LookbackApi allows
+     * connections per server, and merge their snapshots into one iterator.
+     * @return SnapshotIterator - an iterator across all pages of all chunks.
+     */
+    public SnapshotIterator iterateAll() {
+        return iterateAll(api.connectionPool.maxPerRoute);
+    }
+
+    /**
+     * Page through every chunk, with at most parallelism chunks in flight at once.
+     * @param parallelism - maximum number of chunks to page through at once
+     * @return SnapshotIterator - an iterator across all pages of all chunks.
+     */
+    public SnapshotIterator iterateAll(int parallelism) {
+        return iterateAll(parallelism, false);
+    }
+
+    /**
+     * Page through every chunk, optionally skipping snapshots already returned by another
+     * chunk. Skipping repeats requires ObjectID and _ValidFrom, which are added to the
+     * required fields if any have been set.
+     * @param parallelism - maximum number of chunks to page through at once
+     * @param distinct - true to return each snapshot once
+     * @return SnapshotIterator - an iterator across all pages of all chunks.
+     */
+    public SnapshotIterator iterateAll(int parallelism, boolean distinct) {
+        List<LookbackQuery> queries = getChunkQueries();
+        if (distinct && baseQuery.fields != null) {
+            List<LookbackQuery> withKeys = new ArrayList<LookbackQuery>(queries.size());
+            for (LookbackQuery chunk : queries) {
+                withKeys.add(chunk.copyAtStart(chunk.start).requireFields("ObjectID", "_ValidFrom"));
+            }
+            queries = withKeys;
+        }
+        int readAhead = Math.max(1, Math.min(parallelism, queries.size()));
+        return new SnapshotIterator(api, queries, readAhead, parallelism, distinct);
+    }
+
+    private List<LookbackQuery> planChunks() {
+        Map.Entry<String, Object> longest = findLongestInClause();
+        if (longest == null) {
+            return Collections.singletonList(baseQuery.copyAtStart(baseQuery.start));
+        }
+        chunkedField = longest.getKey();
+        Map<?, ?> operators = (Map<?, ?>) longest.getValue();
+        List<Object> values = dropDuplicates((Collection<?>) operators.get("$in"));
+
+        int chunkCount = (values.size() + maxValuesPerChunk - 1) / maxValuesPerChunk;
+        int chunkSize = (values.size() + chunkCount - 1) / chunkCount;
+        List<LookbackQuery> queries = new ArrayList<LookbackQuery>(chunkCount);
+        for (int from = 0; from < values.size(); from += chunkSize) {
+            List<Object> chunk = values.subList(from, Math.min(from + chunkSize, values.size()));
+            queries.add(newChunk(operators, new ArrayList<Object>(chunk)));
+        }
+        return queries;
+    }
+
+    private Map.Entry<String, Object> findLongestInClause() {
+        Map.Entry<String, Object> longest = null;
+        int longestSize = maxValuesPerChunk;
+        for (Map.Entry<String, Object> clause : baseQuery.find.entrySet()) {
+            if (!(clause.getValue() instanceof Map)) {
+                continue;
+            }
+            Object in = ((Map<?, ?>) clause.getValue()).get("$in");
+            if (in instanceof Collection && ((Collection<?>) in).size() > longestSize) {
+                longest = clause;
+                longestSize = ((Collection<?>) in).size();
+            }
+        }
+        return longest;
+    }
+
+    private static List<Object> dropDuplicates(Collection<?> values) {
+        Set<Object> seen = new HashSet<Object>();
+        List<Object> distinct = new ArrayList<Object>(values.size());
+        for (Object value : values) {
+            if (seen.add(FindPredicate.normalize(value))) {
+                distinct.add(value);
+            }
+        }
+        return distinct;
+    }
+
+    private LookbackQuery newChunk(Map<?, ?> operators, List<Object> values) {
+        Map<String, Object> chunkOperators = new LinkedHashMap<String, Object>();
+        for (Map.Entry<?, ?> operator : operators.entrySet()) {
+            chunkOperators.put((String) operator.getKey(), operator.getValue());
+        }
+        chunkOperators.put("$in", values);
+
+        LookbackQuery chunk = baseQuery.copyAtStart(0);
+        chunk.find = new HashMap<String, Object>(baseQuery.find);
+        chunk.find.put(chunkedField, chunkOperators);
+        return chunk;
+    }
+}
@@ -0,0 +1,367 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * A single field of a ColumnarPage, holding that field's value for every snapshot on the page.
+ * Numbers and timestamps are stored in primitive arrays and strings are dictionary encoded,
+ * so a column costs a few bytes per snapshot rather than a boxed object per value.
+ *
+ * Values can be read with the accessor matching the column's type, missing and null values
+ * are reported by isNull, and isMissing tells a snapshot without the field from one whose
+ * value was an explicit null.
+ */
+public abstract class Column {
+
+    /**
+     * How the values of a column are stored.
+     * LONG - integral numbers such as ObjectID or Project, stored as long
+     * TIMESTAMP - ISO 8601 dates such as _ValidFrom, stored as epoch milliseconds
+     * DOUBLE - numbers with a fractional part such as PlanEstimate, stored as double
+     * STRING - strings, stored as codes into a dictionary of distinct values
+     * OBJECT - anything else (booleans, arrays, objects or mixed types), stored as decoded
+     */
+    public enum Type { LONG, TIMESTAMP, DOUBLE, STRING, OBJECT }
+
+    String name;
+    int size;
+    BitSet nulls = new BitSet();
+    BitSet missing = new BitSet();
+
+    Column(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return String - the field this column holds
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return int - the number of snapshots in this column, including nulls
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the snapshot at row had no value, or a null value, for this field.
+     * @param row
+     * @return boolean
+     */
+    public boolean isNull(int row) {
+        checkRow(row);
+        return nulls.get(row);
+    }
+
+    /**
+     * Checks if the snapshot at row had no value at all for this field, rather than a null.
+     * @param row
+     * @return boolean
+     */
+    public boolean isMissing(int row) {
+        checkRow(row);
+        return missing.get(row);
+    }
+
+    /**
+     * @return Type - how this column's values are stored
+     */
+    public abstract Type getType();
+
+    /**
+     * Get the value at row as it would appear in a snapshot map. Timestamps are returned as
+     * ISO 8601 strings, numbers are boxed.
+     * @param row
+     * @return Object - the value, or null
+     */
+    public abstract Object get(int row);
+
+    /**
+     * Get the value at row as a long, valid for LONG, TIMESTAMP and DOUBLE columns.
+     * @param row
+     * @return long - the value, or 0 for null values
+     */
+    public long getLong(int row) {
+        throw new LookbackException("Column " + name + " of type " + getType() + " cannot be read as a long");
+    }
+
+    /**
+     * Get the value at row as a double, valid for LONG, TIMESTAMP and DOUBLE columns.
+     * @param row
+     * @return double - the value, or 0 for null values
+     */
+    public double getDouble(int row) {
+        return getLong(row);
+    }
+
+    /**
+     * Get the value at row as a String.
+     * @param row
+     * @return String - the value, or null
+     */
+    public String getString(int row) {
+        Object value = get(row);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Get the dictionary code of the value at row, valid for STRING columns. Codes index into
+     * getDictionary, so rows can be grouped or compared by code without reading the strings.
+     * @param row
+     * @return int - the code, or 0 for null values
+     */
+    public int getCode(int row) {
+        throw new LookbackException("Column " + name + " of type " + getType() + " is not dictionary encoded");
+    }
+
+    /**
+     * Get the distinct values of a STRING column, in the order they were first seen.
+     * @return List - the dictionary
+     */
+    public List<String> getDictionary() {
+        throw new LookbackException("Column " + name + " of type " + getType() + " is not dictionary encoded");
+    }
+
+    void appendNull() {
+        nulls.set(size);
+        grow();
+        size++;
+    }
+
+    void appendMissing() {
+        missing.set(size);
+        appendNull();
+    }
+
+    void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    abstract void grow();
+
+    abstract void seal();
+
+    static class LongColumn extends Column {
+
+        Type type;
+        NumberPolicy numberPolicy;
+        long[] values = new long[16];
+
+        LongColumn(String name, Type type, NumberPolicy numberPolicy) {
+            super(name);
+            this.type = type;
+            this.numberPolicy = numberPolicy;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Numbers are boxed as the page's NumberPolicy would have decoded them into a snapshot map.
+         */
+        public Object get(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            if (type == Type.TIMESTAMP) {
+                return IsoDates.format(values[row]);
+            }
+            return numberPolicy == NumberPolicy.DOUBLE ? (Object) (double) values[row] : (Object) values[row];
+        }
+
+        public long getLong(int row) {
+            checkRow(row);
+            return values[row];
+        }
+
+        void append(long value) {
+            grow();
+            values[size++] = value;
+        }
+
+        void grow() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+        }
+
+        void seal() {
+            values = Arrays.copyOf(values, size);
+        }
+    }
+
+    static class DoubleColumn extends Column {
+
+        double[] values = new double[16];
+
+        DoubleColumn(String name) {
+            super(name);
+        }
+
+        DoubleColumn(LongColumn integral) {
+            super(integral.name);
+            values = new double[Math.max(16, integral.values.length)];
+            for (int i = 0; i < integral.size; i++) {
+                values[i] = integral.values[i];
+            }
+            nulls = integral.nulls;
+            missing = integral.missing;
+            size = integral.size;
+        }
+
+        public Type getType() {
+            return Type.DOUBLE;
+        }
+
+        public Object get(int row) {
+            return isNull(row) ? null : (Object) values[row];
+        }
+
+        public long getLong(int row) {
+            return (long) getDouble(row);
+        }
+
+        public double getDouble(int row) {
+            checkRow(row);
+            return values[row];
+        }
+
+        void append(double value) {
+            grow();
+            values[size++] = value;
+        }
+
+        void grow() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+        }
+
+        void seal() {
+            values = Arrays.copyOf(values, size);
+        }
+    }
+
+    static class StringColumn extends Column {
+
+        int[] codes = new int[16];
+        List<String> dictionary = new ArrayList<String>();
+        Map<String, Integer> lookup = new HashMap<String, Integer>();
+
+        StringColumn(String name) {
+            super(name);
+        }
+
+        public Type getType() {
+            return Type.STRING;
+        }
+
+        public Object get(int row) {
+            return getString(row);
+        }
+
+        public String getString(int row) {
+            return isNull(row) ? null : dictionary.get(codes[row]);
+        }
+
+        public int getCode(int row) {
+            checkRow(row);
+            return codes[row];
+        }
+
+        public List<String> getDictionary() {
+            return Collections.unmodifiableList(dictionary);
+        }
+
+        void append(String value) {
+            Integer code = lookup.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                lookup.put(value, code);
+            }
+            grow();
+            codes[size++] = code;
+        }
+
+        void grow() {
+            if (size == codes.length) {
+                codes = Arrays.copyOf(codes, size * 2);
+            }
+        }
+
+        void seal() {
+            codes = Arrays.copyOf(codes, size);
+            lookup = null;
+        }
+    }
+
+    static class ObjectColumn extends Column {
+
+        List<Object> values = new ArrayList<Object>();
+
+        ObjectColumn(String name) {
+            super(name);
+        }
+
+        ObjectColumn(Column other) {
+            super(other.name);
+            for (int i = 0; i < other.size; i++) {
+                values.add(other.get(i));
+            }
+            nulls = other.nulls;
+            missing = other.missing;
+            size = other.size;
+        }
+
+        public Type getType() {
+            return Type.OBJECT;
+        }
+
+        public Object get(int row) {
+            checkRow(row);
+            return values.get(row);
+        }
+
+        public long getLong(int row) {
+            Object value = get(row);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0 : super.getLong(row);
+        }
+
+        public double getDouble(int row) {
+            Object value = get(row);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0 : super.getDouble(row);
+        }
+
+        void append(Object value) {
+            if (value == null) {
+                nulls.set(size);
+            }
+            values.add(value);
+            size++;
+        }
+
+        void appendNull() {
+            append(null);
+        }
+
+        void grow() {
+        }
+
+        void seal() {
+            ((ArrayList<Object>) values).trimToSize();
+        }
+    }
+}
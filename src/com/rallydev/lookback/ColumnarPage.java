@@ -0,0 +1,154 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * ColumnarPage objects hold a page of snapshots column by column rather than as a list of
+ * maps. Request one by configuring a query with useColumnarResults, the page is then
+ * available from the Columns field of the LookbackResult:
+ *
+ *      LookbackResult resultSet = query.useColumnarResults().execute();
+ *      Column objectIds = resultSet.Columns.getColumn("ObjectID");
+ *      for (int row = 0; row < resultSet.Columns.size(); row++) {
+ *          long objectId = objectIds.getLong(row);
+ *      }
+ *
+ * Individual snapshots can also be read through a lightweight row view:
+ *
+ *      ColumnarPage.Row snapshot = resultSet.Columns.getRow(0);
+ *      String state = snapshot.getString("ScheduleState");
+ */
+public class ColumnarPage {
+
+    Map<String, Column> columns;
+    int size;
+
+    ColumnarPage(Map<String, Column> columns, int size) {
+        this.columns = columns;
+        this.size = size;
+    }
+
+    /**
+     * @return int - the number of snapshots on this page
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Set - the names of every field present on at least one snapshot
+     */
+    public Set<String> getFieldNames() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    /**
+     * Get the column holding a field.
+     * @param field
+     * @return Column - the column, or null if no snapshot on the page had the field
+     */
+    public Column getColumn(String field) {
+        return columns.get(field);
+    }
+
+    /**
+     * Get a view of a single snapshot on this page.
+     * @param row - index of the snapshot
+     * @return Row
+     */
+    public Row getRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        return new Row(row);
+    }
+
+    /**
+     * A view of one snapshot of a ColumnarPage. Rows read through to the page's columns
+     * and hold no values of their own.
+     */
+    public class Row {
+
+        private int row;
+
+        Row(int row) {
+            this.row = row;
+        }
+
+        /**
+         * @return int - the index of this snapshot on its page
+         */
+        public int getIndex() {
+            return row;
+        }
+
+        /**
+         * Checks if this snapshot had no value, or a null value, for field.
+         * @param field
+         * @return boolean
+         */
+        public boolean isNull(String field) {
+            Column column = columns.get(field);
+            return column == null || column.isNull(row);
+        }
+
+        /**
+         * @param field
+         * @return Object - the value of field as it would appear in a snapshot map
+         */
+        public Object get(String field) {
+            Column column = columns.get(field);
+            return column == null ? null : column.get(row);
+        }
+
+        /**
+         * @param field
+         * @return long - the value of field, timestamps as epoch milliseconds
+         */
+        public long getLong(String field) {
+            return getExistingColumn(field).getLong(row);
+        }
+
+        /**
+         * @param field
+         * @return double - the value of field
+         */
+        public double getDouble(String field) {
+            return getExistingColumn(field).getDouble(row);
+        }
+
+        /**
+         * @param field
+         * @return String - the value of field
+         */
+        public String getString(String field) {
+            Column column = columns.get(field);
+            return column == null ? null : column.getString(row);
+        }
+
+        /**
+         * Copy this snapshot into a map, as it would have appeared in LookbackResult.Results,
+         * with numbers boxed according to the NumberPolicy the page was decoded with and
+         * fields the server sent as null present with a null value. Under LONG_OR_DOUBLE,
+         * integral values of a column that also holds fractions are Doubles.
+         * @return Map
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+            for (Column column : columns.values()) {
+                if (!column.isMissing(row)) {
+                    snapshot.put(column.getName(), column.get(row));
+                }
+            }
+            return snapshot;
+        }
+
+        private Column getExistingColumn(String field) {
+            Column column = columns.get(field);
+            if (column == null) {
+                throw new LookbackException("No snapshot on this page has field " + field);
+            }
+            return column;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * Assembles a ColumnarPage from values handed over by the SnapshotDecoder. A column's type is
+ * chosen by the first non-null value it sees, and widened if a later value doesn't fit:
+ * integral numbers become doubles on the first fraction, anything else falls back to objects.
+ */
+class ColumnarPageBuilder {
+
+    static final Set<String> TIMESTAMP_FIELDS = new HashSet<String>(Arrays.asList("_ValidFrom", "_ValidTo"));
+
+    Map<String, Column> columns = new LinkedHashMap<String, Column>();
+    int rows;
+    NumberPolicy numberPolicy;
+
+    ColumnarPageBuilder() {
+        this(NumberPolicy.DOUBLE);
+    }
+
+    /**
+     * @param numberPolicy - how numbers read back from the page's columns are boxed
+     */
+    ColumnarPageBuilder(NumberPolicy numberPolicy) {
+        this.numberPolicy = numberPolicy;
+    }
+
+    void endRow() {
+        rows++;
+        for (Column column : columns.values()) {
+            if (column.size < rows) {
+                column.appendMissing();
+            }
+        }
+    }
+
+    void appendNull(String field) {
+        getColumn(field).appendNull();
+    }
+
+    void appendNumber(String field, String number) {
+        Column column = getColumn(field);
+        boolean integral = NumberPolicy.isIntegral(number);
+        if (column instanceof PendingColumn) {
+            column = replacePending(field, column, integral
+                    ? new Column.LongColumn(field, Column.Type.LONG, numberPolicy)
+                    : new Column.DoubleColumn(field));
+        } else if (!integral && column.getType() == Column.Type.LONG) {
+            column = new Column.DoubleColumn((Column.LongColumn) column);
+            columns.put(field, column);
+        } else if (column.getType() == Column.Type.STRING || column.getType() == Column.Type.TIMESTAMP) {
+            column = widen(field, column);
+        }
+
+        if (column.getType() == Column.Type.LONG) {
+            ((Column.LongColumn) column).append(Long.parseLong(number));
+        } else if (column.getType() == Column.Type.DOUBLE) {
+            ((Column.DoubleColumn) column).append(Double.parseDouble(number));
+        } else {
+            ((Column.ObjectColumn) column).append(numberPolicy.decode(number));
+        }
+    }
+
+    void appendString(String field, String value) {
+        Column column = getColumn(field);
+        if (column instanceof PendingColumn) {
+            column = replacePending(field, column, newStringColumn(field, value));
+        }
+
+        if (column.getType() == Column.Type.TIMESTAMP) {
+            long millis = IsoDates.parse(value);
+            if (millis != Long.MIN_VALUE) {
+                ((Column.LongColumn) column).append(millis);
+                return;
+            }
+            column = widen(field, column);
+        } else if (column.getType() == Column.Type.LONG || column.getType() == Column.Type.DOUBLE) {
+            column = widen(field, column);
+        }
+
+        if (column.getType() == Column.Type.STRING) {
+            ((Column.StringColumn) column).append(value);
+        } else {
+            ((Column.ObjectColumn) column).append(value);
+        }
+    }
+
+    void appendObject(String field, Object value) {
+        Column column = getColumn(field);
+        if (column instanceof PendingColumn) {
+            column = replacePending(field, column, new Column.ObjectColumn(field));
+        } else if (!(column instanceof Column.ObjectColumn)) {
+            column = widen(field, column);
+        }
+        ((Column.ObjectColumn) column).append(value);
+    }
+
+    ColumnarPage build() {
+        for (Column column : columns.values()) {
+            column.seal();
+        }
+        return new ColumnarPage(columns, rows);
+    }
+
+    private Column getColumn(String field) {
+        Column column = columns.get(field);
+        if (column == null) {
+            column = new PendingColumn(field);
+            for (int i = 0; i < rows; i++) {
+                column.appendMissing();
+            }
+            columns.put(field, column);
+        }
+        return column;
+    }
+
+    /**
+     * Swaps a column that hasn't seen any values yet for one of a concrete type.
+     */
+    private Column replacePending(String field, Column pending, Column replacement) {
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.missing.get(i)) {
+                replacement.appendMissing();
+            } else {
+                replacement.appendNull();
+            }
+        }
+        columns.put(field, replacement);
+        return replacement;
+    }
+
+    private Column widen(String field, Column column) {
+        Column widened = new Column.ObjectColumn(column);
+        columns.put(field, widened);
+        return widened;
+    }
+
+    private Column newStringColumn(String field, String value) {
+        if (TIMESTAMP_FIELDS.contains(field) && IsoDates.parse(value) != Long.MIN_VALUE) {
+            return new Column.LongColumn(field, Column.Type.TIMESTAMP, numberPolicy);
+        }
+        return new Column.StringColumn(field);
+    }
+
+    /**
+     * Placeholder for a column whose values so far have all been null.
+     */
+    private static class PendingColumn extends Column {
+
+        PendingColumn(String name) {
+            super(name);
+        }
+
+        public Type getType() {
+            return Type.OBJECT;
+        }
+
+        public Object get(int row) {
+            checkRow(row);
+            return null;
+        }
+
+        void grow() {
+        }
+
+        void seal() {
+        }
+    }
+}
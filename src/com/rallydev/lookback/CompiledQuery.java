@@ -0,0 +1,91 @@
+package com.rallydev.lookback;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The request body of a LookbackQuery with everything but start and pagesize serialized
+ * once, so each page of a query only formats two numbers onto the precomputed bytes.
+ * A compiled query is immutable and remembers the collections it was compiled from, it is
+ * only reused by a query still holding exactly those collections. Queries copy the values
+ * they're given, so nothing nested in those collections changes behind a compiled query.
+ */
+final class CompiledQuery {
+
+    private final Map<String, Object> find;
+    private final Map<String, Object> seekClause;
+    private final Map<String, Integer> sort;
+    private final Set<String> fields;
+    private final Set<String> hydrate;
+    private final Map<String, Object> properties;
+
+    private final String prefix;
+    private final byte[] prefixBytes;
+    private final boolean hasFixedStart;
+    private final boolean hasFixedPagesize;
+
+    CompiledQuery(LookbackQuery query) {
+        find = query.find;
+        seekClause = query.seekClause;
+        sort = query.sort;
+        fields = query.fields;
+        hydrate = query.hydrate;
+        properties = query.properties;
+
+        QueryBuilder builder = new QueryBuilder();
+        builder.addField("find", seekClause == null ? find : FindClauses.and(find, seekClause));
+        builder.addField("fields", fields);
+        builder.addField("hydrate", hydrate);
+        builder.addField("sort", sort);
+        builder.mergeProperties(properties);
+        hasFixedStart = builder.hasField("start");
+        hasFixedPagesize = builder.hasField("pagesize");
+
+        String json = builder.getQueryJson();
+        String members = json.substring(0, json.length() - 1);
+        prefix = members.length() > 1 && !(hasFixedStart && hasFixedPagesize) ? members + "," : members;
+        prefixBytes = toUtf8(prefix);
+    }
+
+    boolean isCompiledFrom(LookbackQuery query) {
+        return find == query.find && seekClause == query.seekClause && sort == query.sort
+                && fields == query.fields && hydrate == query.hydrate && properties == query.properties;
+    }
+
+    String toJson(int start, int pagesize) {
+        return prefix + buildSuffix(start, pagesize);
+    }
+
+    byte[] toBytes(int start, int pagesize) {
+        String suffix = buildSuffix(start, pagesize);
+        byte[] body = new byte[prefixBytes.length + suffix.length()];
+        System.arraycopy(prefixBytes, 0, body, 0, prefixBytes.length);
+        for (int i = 0; i < suffix.length(); i++) {
+            body[prefixBytes.length + i] = (byte) suffix.charAt(i);
+        }
+        return body;
+    }
+
+    /**
+     * The ASCII tail of the body, start and pagesize unless a property fixed them.
+     */
+    private String buildSuffix(int start, int pagesize) {
+        StringBuilder suffix = new StringBuilder(36);
+        if (!hasFixedPagesize) {
+            suffix.append("\"pagesize\":").append(pagesize);
+        }
+        if (!hasFixedStart) {
+            suffix.append(hasFixedPagesize ? "" : ",").append("\"start\":").append(start);
+        }
+        return suffix.append('}').toString();
+    }
+
+    private static byte[] toUtf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.rallydev.lookback;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the long lived HttpClient used by a LookbackApi. Connections are pooled and kept
+ * alive between requests so that paging through a result set only pays for the TCP and
+ * TLS handshake once per connection rather than once per page. HttpClient's own retries
+ * are turned off, requests are retried by the LookbackApi's RequestThrottle instead.
+ */
+class ConnectionPool {
+
+    /**
+     * Context attribute holding the System.nanoTime at which a request's connection was
+     * ready, once it had been leased from the pool and opened if necessary.
+     */
+    static final String CONNECTED_AT = "lookback.connected-at";
+
+    /**
+     * The longest interval between sweeps for expired and idle connections.
+     */
+    static final long EVICTION_INTERVAL_MILLIS = 5000;
+
+    int maxTotal = 20;
+    int maxPerRoute = 10;
+    volatile long keepAliveMillis = 30000;
+    volatile long idleTimeoutMillis = 60000;
+
+    private volatile ThreadSafeClientConnManager connectionManager;
+    private volatile DefaultHttpClient httpClient;
+    private final AtomicLong nextEviction = new AtomicLong();
+
+    /**
+     * Get the client, opening it on first use. This is called for every request, so once the
+     * client is open it takes no lock, and idle connections are swept by whichever request
+     * first finds a sweep due rather than on every request.
+     */
+    HttpClient getClient() {
+        DefaultHttpClient client = httpClient;
+        if (client == null) {
+            client = openIfClosed();
+        }
+        evictIdleConnectionsIfDue();
+        return client;
+    }
+
+    synchronized void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+        if (connectionManager != null) {
+            connectionManager.setMaxTotal(maxTotal);
+        }
+    }
+
+    synchronized void setMaxPerRoute(int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+        if (connectionManager != null) {
+            connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        }
+    }
+
+    synchronized void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        nextEviction.set(0);
+    }
+
+    synchronized int getConnectionsInPool() {
+        return connectionManager == null ? 0 : connectionManager.getConnectionsInPool();
+    }
+
+    synchronized void close() {
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
+        connectionManager = null;
+        httpClient = null;
+    }
+
+    private synchronized DefaultHttpClient openIfClosed() {
+        if (httpClient == null) {
+            open();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Build the client fully before publishing it, getClient reads it without a lock.
+     */
+    private void open() {
+        ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault());
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+
+        DefaultHttpClient client = new DefaultHttpClient(manager);
+        HttpConnectionParams.setTcpNoDelay(client.getParams(), true);
+        client.setKeepAliveStrategy(createKeepAliveStrategy());
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.addRequestInterceptor(createConnectedInterceptor());
+
+        connectionManager = manager;
+        httpClient = client;
+    }
+
+    private void evictIdleConnectionsIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextEviction.get();
+        if (now < due || !nextEviction.compareAndSet(due, now + Math.min(idleTimeoutMillis, EVICTION_INTERVAL_MILLIS))) {
+            return;
+        }
+        ThreadSafeClientConnManager manager = connectionManager;
+        if (manager != null) {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Request interceptors run once the route has been established, immediately before
+     * the request is written, which marks the end of connecting.
+     */
+    private HttpRequestInterceptor createConnectedInterceptor() {
+        return new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context) {
+                context.setAttribute(CONNECTED_AT, System.nanoTime());
+            }
+        };
+    }
+
+    private ConnectionKeepAliveStrategy createKeepAliveStrategy() {
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long serverDuration = super.getKeepAliveDuration(response, context);
+                return serverDuration > 0 ? serverDuration : keepAliveMillis;
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * Helpers for building find clauses that the toolkit adds to a user's query.
+ */
+class FindClauses {
+
+    private FindClauses() {
+    }
+
+    /**
+     * Combine a find map with an additional clause so that snapshots must match both. The
+     * clause's keys are merged in directly when they don't collide with the find's, otherwise
+     * the two are joined with $and. Neither argument is modified.
+     */
+    static Map<String, Object> and(Map<String, Object> find, Map<String, Object> clause) {
+        Map<String, Object> combined = new HashMap<String, Object>();
+        if (find == null) {
+            combined.putAll(clause);
+        } else if (Collections.disjoint(find.keySet(), clause.keySet())) {
+            combined.putAll(find);
+            combined.putAll(clause);
+        } else {
+            combined.put("$and", Arrays.asList(find, clause));
+        }
+        return combined;
+    }
+
+    /**
+     * Build {field: {operator: value}}.
+     */
+    static Map<String, Object> compare(String field, String operator, Object value) {
+        Map<String, Object> comparison = new HashMap<String, Object>();
+        comparison.put(operator, value);
+        Map<String, Object> clause = new HashMap<String, Object>();
+        clause.put(field, comparison);
+        return clause;
+    }
+
+    /**
+     * Build {"$or": [first, second]}.
+     */
+    static Map<String, Object> or(Map<String, Object> first, Map<String, Object> second) {
+        List<Map<String, Object>> clauses = new ArrayList<Map<String, Object>>(2);
+        clauses.add(first);
+        clauses.add(second);
+        Map<String, Object> clause = new HashMap<String, Object>();
+        clause.put("$or", clauses);
+        return clause;
+    }
+
+    /**
+     * Copy the maps and collections nested in a clause value, so that a query owns the
+     * values it was given and later changes to the caller's objects can't reach it.
+     * Collections are copied to lists, other values are immutable or left shared.
+     */
+    static Object copyOf(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copyOf(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<Object>(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                copy.add(copyOf(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Get a number as it should be sent back to the server, integral Doubles decoded
+     * from a response are returned as Longs so large OIDs aren't written in exponent form.
+     */
+    static Object exactNumber(Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && Math.abs(number) < 9.007199254740992E15) {
+                return (long) number;
+            }
+        }
+        return value;
+    }
+}
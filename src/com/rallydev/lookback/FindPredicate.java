@@ -0,0 +1,290 @@
+package com.rallydev.lookback;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * A find clause compiled into a tree of predicates that can be tested against snapshot maps
+ * locally. Comparisons follow the Lookback API: a clause on a field holding an array, such
+ * as _TypeHierarchy or _ItemHierarchy, matches if any element matches, a list value matches
+ * an array equal to it as a whole, numbers compare by value whatever their boxed type, and
+ * $in lists become hash sets. Directives such as __At that aren't conditions on a field
+ * are rejected rather than treated as one.
+ */
+abstract class FindPredicate {
+
+    abstract boolean matches(Map<String, Object> snapshot);
+
+    static FindPredicate compile(Map<String, Object> find) {
+        List<FindPredicate> clauses = new ArrayList<FindPredicate>();
+        for (Map.Entry<String, Object> entry : find.entrySet()) {
+            clauses.add(compileEntry(entry.getKey(), entry.getValue()));
+        }
+        return clauses.size() == 1 ? clauses.get(0) : new All(clauses);
+    }
+
+    private static FindPredicate compileEntry(String field, Object value) {
+        if ("$and".equals(field)) {
+            return new All(compileList(field, value));
+        } else if ("$or".equals(field)) {
+            return new Any(compileList(field, value));
+        } else if ("$nor".equals(field)) {
+            return new Not(new Any(compileList(field, value)));
+        } else if (field.startsWith("$")) {
+            throw new LookbackException("Operator " + field + " can't be evaluated locally");
+        } else if (field.startsWith("__")) {
+            throw new LookbackException(field + " can't be evaluated locally");
+        }
+
+        if (value instanceof Map && isOperatorMap((Map<?, ?>) value)) {
+            List<FindPredicate> operators = new ArrayList<FindPredicate>();
+            for (Map.Entry<?, ?> operator : ((Map<?, ?>) value).entrySet()) {
+                operators.add(compileOperator(field, (String) operator.getKey(), operator.getValue()));
+            }
+            return operators.size() == 1 ? operators.get(0) : new All(operators);
+        }
+        return new Equals(field, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<FindPredicate> compileList(String operator, Object clauses) {
+        if (!(clauses instanceof List)) {
+            throw new LookbackException(operator + " requires a list of clauses");
+        }
+        List<FindPredicate> predicates = new ArrayList<FindPredicate>();
+        for (Object clause : (List<Object>) clauses) {
+            predicates.add(compile((Map<String, Object>) clause));
+        }
+        return predicates;
+    }
+
+    private static FindPredicate compileOperator(String field, String operator, Object operand) {
+        if ("$gt".equals(operator)) {
+            return new Compare(field, operand, 1, 1);
+        } else if ("$gte".equals(operator)) {
+            return new Compare(field, operand, 0, 1);
+        } else if ("$lt".equals(operator)) {
+            return new Compare(field, operand, -1, -1);
+        } else if ("$lte".equals(operator)) {
+            return new Compare(field, operand, -1, 0);
+        } else if ("$ne".equals(operator)) {
+            return new Not(new Equals(field, operand));
+        } else if ("$in".equals(operator)) {
+            return new In(field, operand);
+        } else if ("$nin".equals(operator)) {
+            return new Not(new In(field, operand));
+        } else if ("$exists".equals(operator)) {
+            return new Exists(field, Boolean.TRUE.equals(operand));
+        }
+        throw new LookbackException("Operator " + operator + " can't be evaluated locally");
+    }
+
+    private static boolean isOperatorMap(Map<?, ?> value) {
+        for (Object key : value.keySet()) {
+            if (!(key instanceof String) || !((String) key).startsWith("$")) {
+                return false;
+            }
+        }
+        return !value.isEmpty();
+    }
+
+    /**
+     * Get a value in the form used for equality and hashing, integral numbers of any boxed
+     * type become Longs, other numbers become Doubles and lists are normalized element-wise.
+     */
+    static Object normalize(Object value) {
+        if (value instanceof List) {
+            List<Object> normalized = new ArrayList<Object>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                normalized.add(normalize(element));
+            }
+            return normalized;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            return ((BigInteger) value).longValue();
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (number == Math.rint(number) && Math.abs(number) < 9.2e18) {
+                return (long) number;
+            }
+            return number;
+        }
+        return value;
+    }
+
+    /**
+     * Order two normalized values, numbers and strings compare among themselves.
+     * @return the ordering, or null if the values can't be compared
+     */
+    static Integer compareValues(Object first, Object second) {
+        if (first instanceof Long && second instanceof Long) {
+            return ((Long) first).compareTo((Long) second);
+        } else if (first instanceof Number && second instanceof Number) {
+            return Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+        } else if (first instanceof String && second instanceof String) {
+            return ((String) first).compareTo((String) second);
+        }
+        return null;
+    }
+
+    /**
+     * Base for predicates on a single field, testing each element when the field is an array.
+     */
+    private abstract static class FieldPredicate extends FindPredicate {
+
+        String field;
+
+        FieldPredicate(String field) {
+            this.field = field;
+        }
+
+        boolean matches(Map<String, Object> snapshot) {
+            Object value = snapshot.get(field);
+            if (value instanceof List) {
+                for (Object element : (List<?>) value) {
+                    if (matchesValue(normalize(element))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchesValue(normalize(value));
+        }
+
+        abstract boolean matchesValue(Object value);
+    }
+
+    private static class Equals extends FieldPredicate {
+
+        Object expected;
+
+        Equals(String field, Object expected) {
+            super(field);
+            this.expected = normalize(expected);
+        }
+
+        /**
+         * An expected list matches an array equal to it, as well as an element that is.
+         */
+        boolean matches(Map<String, Object> snapshot) {
+            if (expected instanceof List && expected.equals(normalize(snapshot.get(field)))) {
+                return true;
+            }
+            return super.matches(snapshot);
+        }
+
+        boolean matchesValue(Object value) {
+            return expected == null ? value == null : expected.equals(value);
+        }
+    }
+
+    private static class Compare extends FieldPredicate {
+
+        Object operand;
+        int lowest;
+        int highest;
+
+        /**
+         * Matches values whose ordering against the operand is between lowest and highest.
+         */
+        Compare(String field, Object operand, int lowest, int highest) {
+            super(field);
+            this.operand = normalize(operand);
+            this.lowest = lowest;
+            this.highest = highest;
+        }
+
+        boolean matchesValue(Object value) {
+            Integer comparison = compareValues(value, operand);
+            if (comparison == null) {
+                return false;
+            }
+            int sign = Integer.signum(comparison);
+            return sign >= lowest && sign <= highest;
+        }
+    }
+
+    private static class In extends FieldPredicate {
+
+        Set<Object> values = new HashSet<Object>();
+
+        In(String field, Object operand) {
+            super(field);
+            if (!(operand instanceof Collection)) {
+                throw new LookbackException("$in and $nin require a list of values");
+            }
+            for (Object value : (Collection<?>) operand) {
+                values.add(normalize(value));
+            }
+        }
+
+        boolean matchesValue(Object value) {
+            return values.contains(value);
+        }
+    }
+
+    private static class Exists extends FindPredicate {
+
+        String field;
+        boolean exists;
+
+        Exists(String field, boolean exists) {
+            this.field = field;
+            this.exists = exists;
+        }
+
+        boolean matches(Map<String, Object> snapshot) {
+            return snapshot.containsKey(field) == exists;
+        }
+    }
+
+    private static class All extends FindPredicate {
+
+        FindPredicate[] clauses;
+
+        All(List<FindPredicate> clauses) {
+            this.clauses = clauses.toArray(new FindPredicate[clauses.size()]);
+        }
+
+        boolean matches(Map<String, Object> snapshot) {
+            for (FindPredicate clause : clauses) {
+                if (!clause.matches(snapshot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Any extends FindPredicate {
+
+        FindPredicate[] clauses;
+
+        Any(List<FindPredicate> clauses) {
+            this.clauses = clauses.toArray(new FindPredicate[clauses.size()]);
+        }
+
+        boolean matches(Map<String, Object> snapshot) {
+            for (FindPredicate clause : clauses) {
+                if (clause.matches(snapshot)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Not extends FindPredicate {
+
+        FindPredicate clause;
+
+        Not(FindPredicate clause) {
+            this.clause = clause;
+        }
+
+        boolean matches(Map<String, Object> snapshot) {
+            return !clause.matches(snapshot);
+        }
+    }
+}
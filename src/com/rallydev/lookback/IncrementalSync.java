@@ -0,0 +1,71 @@
+package com.rallydev.lookback;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the snapshots of a query that were created or closed since a watermark. The query's
+ * find is narrowed to snapshots with _ValidFrom after the watermark or with a _ValidTo between
+ * the watermark and the end of time, and the delta is paged through by key.
+ */
+class IncrementalSync {
+
+    static final String END_OF_TIME = "9999-01-01T00:00:00.000Z";
+
+    LookbackApi api;
+    LookbackQuery baseQuery;
+
+    IncrementalSync(LookbackApi api, LookbackQuery baseQuery) {
+        this.api = api;
+        this.baseQuery = baseQuery;
+    }
+
+    Watermark sync(Watermark since, SnapshotHandler handler) {
+        LookbackQuery query = buildDeltaQuery(since);
+        LookbackResult page = query.execute();
+        String etlDate = page.ETLDate;
+        String maxValidFrom = since == null ? null : since.getMaxValidFrom();
+
+        while (true) {
+            for (Map<String, Object> snapshot : page.Results) {
+                maxValidFrom = later(maxValidFrom, snapshot.get("_ValidFrom"));
+                handler.handleSnapshot(snapshot);
+            }
+            if (!page.hasMorePages()) {
+                break;
+            }
+            page = api.getQueryForNextPage(page).execute();
+        }
+
+        if (etlDate == null && maxValidFrom == null) {
+            return since;
+        }
+        return new Watermark(etlDate, maxValidFrom);
+    }
+
+    private LookbackQuery buildDeltaQuery(Watermark since) {
+        LookbackQuery query = baseQuery.copyAtStart(0);
+        query.isColumnar = false;
+        query.useKeysetPagination();
+        if (since != null) {
+            String cutoff = since.getCutoff();
+            Map<String, Object> closedRange = new HashMap<String, Object>();
+            closedRange.put("$gt", cutoff);
+            closedRange.put("$lt", END_OF_TIME);
+            Map<String, Object> closed = new HashMap<String, Object>();
+            closed.put("_ValidTo", closedRange);
+
+            Map<String, Object> created = FindClauses.compare("_ValidFrom", "$gt", cutoff);
+            query.find = FindClauses.and(query.find, FindClauses.or(created, closed));
+        }
+        return query;
+    }
+
+    private static String later(String current, Object candidate) {
+        if (candidate == null) {
+            return current;
+        }
+        String value = candidate.toString();
+        return current == null || value.compareTo(current) > 0 ? value : current;
+    }
+}
@@ -0,0 +1,91 @@
+package com.rallydev.lookback;
+
+/**
+ * Converts between the ISO 8601 UTC timestamps used by the Lookback API, such as
+ * 2013-01-01T12:30:00.000Z, and epoch milliseconds without going through Calendar.
+ */
+class IsoDates {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private IsoDates() {
+    }
+
+    /**
+     * @return epoch milliseconds, or Long.MIN_VALUE if the value isn't a UTC timestamp
+     */
+    static long parse(String value) {
+        int length = value.length();
+        if (length < 20 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T'
+                || value.charAt(13) != ':' || value.charAt(16) != ':' || value.charAt(length - 1) != 'Z') {
+            return Long.MIN_VALUE;
+        }
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 7);
+        int day = digits(value, 8, 10);
+        int hour = digits(value, 11, 13);
+        int minute = digits(value, 14, 16);
+        int second = digits(value, 17, 19);
+        int millis = 0;
+        if (length > 20) {
+            if (value.charAt(19) != '.' || length != 24) {
+                return Long.MIN_VALUE;
+            }
+            millis = digits(value, 20, 23);
+        }
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || minute < 0 || second < 0 || millis < 0) {
+            return Long.MIN_VALUE;
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return days * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+    }
+
+    static String format(long epochMillis) {
+        long days = floorDiv(epochMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) (epochMillis - days * MILLIS_PER_DAY);
+
+        long era = floorDiv(days + 719468, 146097);
+        int dayOfEra = (int) (days + 719468 - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03dZ", year, month, day,
+                millisOfDay / 3600000, millisOfDay / 60000 % 60, millisOfDay / 1000 % 60, millisOfDay % 1000);
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        int yearOfEra = (int) (year - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int digits(String value, int from, int to) {
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+}
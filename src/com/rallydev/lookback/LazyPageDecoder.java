@@ -0,0 +1,224 @@
+package com.rallydev.lookback;
+
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Decodes a whole response held as UTF-8 bytes into a LookbackResult of LazySnapshots. The
+ * envelope fields are decoded as usual, but each element of Results is only scanned for its
+ * end and kept as a byte range. Scanning works on the raw bytes: the bytes of multi-byte
+ * UTF-8 characters never collide with JSON's structural characters, so strings are skipped
+ * by looking for their closing quote and nested values by counting brackets.
+ */
+class LazyPageDecoder {
+
+    static LookbackResult decode(byte[] body, NumberPolicy numberPolicy) throws IOException {
+        return decode(body, numberPolicy, null);
+    }
+
+    static LookbackResult decode(byte[] body, NumberPolicy numberPolicy, SymbolTable symbols) throws IOException {
+        LookbackResult result = new LookbackResult();
+        result.Results = new ArrayList<Map<String, Object>>();
+
+        int position = expect(body, skipWhitespace(body, 0), '{');
+        while (true) {
+            position = skipWhitespace(body, position);
+            if (position < body.length && body[position] == '}') {
+                return result;
+            }
+            int keyEnd = skipString(body, position);
+            String name = decodeString(body, position, keyEnd);
+            int valueStart = skipWhitespace(body, expect(body, skipWhitespace(body, keyEnd), ':'));
+            int valueEnd = skipValue(body, valueStart);
+
+            if ("Results".equals(name) && body[valueStart] == '[') {
+                readResults(body, valueStart, result, numberPolicy, symbols);
+            } else if (body[valueStart] != 'n') {
+                SnapshotDecoder decoder = openDecoder(body, valueStart, valueEnd, numberPolicy, null);
+                decoder.readEnvelopeField(result, name);
+            }
+            position = skipSeparator(body, valueEnd, '}');
+        }
+    }
+
+    private static void readResults(byte[] body, int arrayStart, LookbackResult result, NumberPolicy numberPolicy,
+                                    SymbolTable symbols) throws IOException {
+        int position = arrayStart + 1;
+        while (true) {
+            position = skipWhitespace(body, position);
+            if (position < body.length && body[position] == ']') {
+                return;
+            }
+            int end = skipValue(body, position);
+            if (body[position] != '{') {
+                throw new MalformedJsonException("Expected a snapshot object at byte " + position);
+            }
+            result.Results.add(new LazySnapshot(body, position, end, numberPolicy, symbols));
+            position = skipSeparator(body, end, ']');
+        }
+    }
+
+    /**
+     * Open a decoder over the bytes of a single value, for values too intricate to decode
+     * directly, such as objects and arrays.
+     */
+    static SnapshotDecoder openDecoder(byte[] body, int start, int end, NumberPolicy numberPolicy,
+                                       SymbolTable symbols) throws IOException {
+        SnapshotDecoder decoder = new SnapshotDecoder(
+                new InputStreamReader(new ByteArrayInputStream(body, start, end - start), "UTF-8"), numberPolicy, symbols);
+        decoder.reader.setLenient(true);
+        return decoder;
+    }
+
+    static int skipWhitespace(byte[] body, int position) {
+        while (position < body.length) {
+            byte b = body[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Step past the comma after a value, or stop at the closing bracket of its container.
+     */
+    static int skipSeparator(byte[] body, int position, char close) throws IOException {
+        position = skipWhitespace(body, position);
+        if (position < body.length && body[position] == ',') {
+            return position + 1;
+        }
+        if (position < body.length && body[position] == close) {
+            return position;
+        }
+        throw new MalformedJsonException("Expected ',' or '" + close + "' at byte " + position);
+    }
+
+    static int expect(byte[] body, int position, char expected) throws IOException {
+        if (position >= body.length || body[position] != expected) {
+            throw new MalformedJsonException("Expected '" + expected + "' at byte " + position);
+        }
+        return position + 1;
+    }
+
+    /**
+     * @return the position just past the value starting at position
+     */
+    static int skipValue(byte[] body, int position) throws IOException {
+        if (position >= body.length) {
+            throw new MalformedJsonException("Unexpected end of response");
+        }
+        byte b = body[position];
+        if (b == '"') {
+            return skipString(body, position);
+        } else if (b == '{' || b == '[') {
+            return skipContainer(body, position);
+        }
+        int end = position;
+        while (end < body.length && !isDelimiter(body[end])) {
+            end++;
+        }
+        if (end == position) {
+            throw new MalformedJsonException("Expected a value at byte " + position);
+        }
+        return end;
+    }
+
+    /**
+     * @return the position just past the closing quote of the string starting at position
+     */
+    static int skipString(byte[] body, int position) throws IOException {
+        if (position >= body.length || body[position] != '"') {
+            throw new MalformedJsonException("Expected a string at byte " + position);
+        }
+        for (int i = position + 1; i < body.length; i++) {
+            if (body[i] == '\\') {
+                i++;
+            } else if (body[i] == '"') {
+                return i + 1;
+            }
+        }
+        throw new MalformedJsonException("Unterminated string at byte " + position);
+    }
+
+    private static int skipContainer(byte[] body, int position) throws IOException {
+        int depth = 0;
+        for (int i = position; i < body.length; i++) {
+            byte b = body[i];
+            if (b == '"') {
+                i = skipString(body, i) - 1;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        throw new MalformedJsonException("Unterminated value at byte " + position);
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Decode the string whose quotes are at start and end - 1.
+     */
+    static String decodeString(byte[] body, int start, int end) throws IOException {
+        int contentStart = start + 1;
+        int contentEnd = end - 1;
+        boolean isPlain = true;
+        for (int i = contentStart; i < contentEnd && isPlain; i++) {
+            isPlain = body[i] != '\\';
+        }
+        if (isPlain) {
+            return new String(body, contentStart, contentEnd - contentStart, "UTF-8");
+        }
+
+        StringBuilder decoded = new StringBuilder(contentEnd - contentStart);
+        int runStart = contentStart;
+        for (int i = contentStart; i < contentEnd; i++) {
+            if (body[i] != '\\') {
+                continue;
+            }
+            decoded.append(new String(body, runStart, i - runStart, "UTF-8"));
+            char escaped = (char) body[++i];
+            switch (escaped) {
+                case 'b':
+                    decoded.append('\b');
+                    break;
+                case 'f':
+                    decoded.append('\f');
+                    break;
+                case 'n':
+                    decoded.append('\n');
+                    break;
+                case 'r':
+                    decoded.append('\r');
+                    break;
+                case 't':
+                    decoded.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= contentEnd) {
+                        throw new MalformedJsonException("Truncated escape at byte " + i);
+                    }
+                    decoded.append((char) Integer.parseInt(new String(body, i + 1, 4, "US-ASCII"), 16));
+                    i += 4;
+                    break;
+                default:
+                    decoded.append(escaped);
+            }
+            runStart = i + 1;
+        }
+        decoded.append(new String(body, runStart, contentEnd - runStart, "UTF-8"));
+        return decoded.toString();
+    }
+}
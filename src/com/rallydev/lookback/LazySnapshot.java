@@ -0,0 +1,277 @@
+package com.rallydev.lookback;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A snapshot that keeps the raw bytes of its JSON object and decodes each field only when
+ * it is first read. Queries configured with useLazySnapshots return these in their Results,
+ * so a pipeline that filters on one or two fields pays to decode only those:
+ *
+ *      for (Map<String, Object> snapshot : query.useLazySnapshots().execute().Results) {
+ *          if ("Accepted".equals(snapshot.get("ScheduleState"))) {
+ *              ...
+ *          }
+ *      }
+ *
+ * The first read scans the object for the positions of its fields, skipping their values
+ * without decoding them. Decoded values are kept, so later reads of a field are free.
+ * Iterating the entries decodes every field. LazySnapshots are read only, copy one into a
+ * HashMap to change it, and each one holds on to the bytes of its whole page.
+ * A LazySnapshot is safe to read from multiple threads.
+ */
+public class LazySnapshot extends AbstractMap<String, Object> {
+
+    private static final Object UNDECODED = new Object();
+
+    private final byte[] body;
+    private final int start;
+    private final int end;
+    private final NumberPolicy numberPolicy;
+    private final SymbolTable symbols;
+
+    private int[] keyStarts;
+    private int[] keyEnds;
+    private int[] valueStarts;
+    private int[] valueEnds;
+    private String[] names;
+    private Object[] values;
+    private int fieldCount = -1;
+
+    LazySnapshot(byte[] body, int start, int end, NumberPolicy numberPolicy, SymbolTable symbols) {
+        this.body = body;
+        this.start = start;
+        this.end = end;
+        this.numberPolicy = numberPolicy;
+        this.symbols = symbols;
+    }
+
+    @Override
+    public synchronized Object get(Object key) {
+        int field = indexOf(key);
+        return field < 0 ? null : decodeField(field);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        scanFields();
+        return fieldCount;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            public int size() {
+                return LazySnapshot.this.size();
+            }
+
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    int next = 0;
+
+                    public boolean hasNext() {
+                        return next < size();
+                    }
+
+                    public Entry<String, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        synchronized (LazySnapshot.this) {
+                            int field = next++;
+                            return new SimpleImmutableEntry<String, Object>(getName(field), decodeField(field));
+                        }
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException("LazySnapshots are read only");
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            public int size() {
+                return LazySnapshot.this.size();
+            }
+
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    int next = 0;
+
+                    public boolean hasNext() {
+                        return next < size();
+                    }
+
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        synchronized (LazySnapshot.this) {
+                            return getName(next++);
+                        }
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException("LazySnapshots are read only");
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return int - the number of fields decoded so far
+     */
+    synchronized int getDecodedCount() {
+        int decoded = 0;
+        for (int field = 0; field < fieldCount; field++) {
+            decoded += values[field] == UNDECODED ? 0 : 1;
+        }
+        return decoded;
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        scanFields();
+        String name = (String) key;
+        for (int field = 0; field < fieldCount; field++) {
+            if (nameEquals(field, name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare a field's name without decoding it, unless it holds escapes or non-ASCII bytes.
+     */
+    private boolean nameEquals(int field, String name) {
+        if (names[field] != null) {
+            return names[field].equals(name);
+        }
+        int nameStart = keyStarts[field] + 1;
+        int length = keyEnds[field] - 1 - nameStart;
+        if (length != name.length()) {
+            for (int i = nameStart; i < nameStart + length; i++) {
+                if (body[i] == '\\' || body[i] < 0) {
+                    return getName(field).equals(name);
+                }
+            }
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = body[nameStart + i];
+            if (b == '\\' || b < 0) {
+                return getName(field).equals(name);
+            }
+            if (b != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getName(int field) {
+        if (names[field] == null) {
+            try {
+                names[field] = intern(LazyPageDecoder.decodeString(body, keyStarts[field], keyEnds[field]));
+            } catch (IOException exception) {
+                throw new LookbackException(exception);
+            }
+        }
+        return names[field];
+    }
+
+    /**
+     * Find where each field's name and value lie, skipping over the values.
+     */
+    private void scanFields() {
+        if (fieldCount >= 0) {
+            return;
+        }
+        int capacity = 16;
+        keyStarts = new int[capacity];
+        keyEnds = new int[capacity];
+        valueStarts = new int[capacity];
+        valueEnds = new int[capacity];
+        int count = 0;
+        try {
+            int position = start + 1;
+            while (true) {
+                position = LazyPageDecoder.skipWhitespace(body, position);
+                if (position >= end - 1) {
+                    break;
+                }
+                if (count == capacity) {
+                    capacity *= 2;
+                    keyStarts = Arrays.copyOf(keyStarts, capacity);
+                    keyEnds = Arrays.copyOf(keyEnds, capacity);
+                    valueStarts = Arrays.copyOf(valueStarts, capacity);
+                    valueEnds = Arrays.copyOf(valueEnds, capacity);
+                }
+                keyStarts[count] = position;
+                keyEnds[count] = LazyPageDecoder.skipString(body, position);
+                position = LazyPageDecoder.skipWhitespace(body, keyEnds[count]);
+                position = LazyPageDecoder.skipWhitespace(body, LazyPageDecoder.expect(body, position, ':'));
+                valueStarts[count] = position;
+                valueEnds[count] = LazyPageDecoder.skipValue(body, position);
+                count++;
+                position = LazyPageDecoder.skipSeparator(body, valueEnds[count - 1], '}');
+            }
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+        names = new String[count];
+        values = new Object[count];
+        Arrays.fill(values, UNDECODED);
+        fieldCount = count;
+    }
+
+    private Object decodeField(int field) {
+        if (values[field] == UNDECODED) {
+            try {
+                values[field] = decodeValue(valueStarts[field], valueEnds[field]);
+            } catch (IOException exception) {
+                throw new LookbackException(exception);
+            }
+        }
+        return values[field];
+    }
+
+    private Object decodeValue(int valueStart, int valueEnd) throws IOException {
+        switch (body[valueStart]) {
+            case '"':
+                return intern(LazyPageDecoder.decodeString(body, valueStart, valueEnd));
+            case 'n':
+                return null;
+            case 't':
+                return Boolean.TRUE;
+            case 'f':
+                return Boolean.FALSE;
+            case '{':
+            case '[':
+                return LazyPageDecoder.openDecoder(body, valueStart, valueEnd, numberPolicy, symbols).readValue();
+            default:
+                return numberPolicy.decode(new String(body, valueStart, valueEnd - valueStart, "US-ASCII"));
+        }
+    }
+
+    private String intern(String value) {
+        return symbols == null ? value : symbols.intern(value);
+    }
+}
@@ -0,0 +1,103 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * Answers a LookbackQuery from snapshots already held locally, applying its find, sort,
+ * start, pagesize and fields the way the Lookback API would.
+ */
+class LocalQuery {
+
+    LookbackQuery query;
+    FindPredicate predicate;
+
+    LocalQuery(LookbackQuery query) {
+        this.query = query;
+        Map<String, Object> find = query.seekClause == null ? query.find : FindClauses.and(query.find, query.seekClause);
+        this.predicate = FindPredicate.compile(find);
+    }
+
+    LookbackResult execute(Iterable<Map<String, Object>> snapshots) {
+        List<Map<String, Object>> matching = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> snapshot : snapshots) {
+            if (predicate.matches(snapshot)) {
+                matching.add(snapshot);
+            }
+        }
+        if (query.sort != null && !query.sort.isEmpty()) {
+            Collections.sort(matching, new SortComparator(query.sort));
+        }
+
+        LookbackResult result = new LookbackResult();
+        result.Errors = new ArrayList<String>();
+        result.Warnings = new ArrayList<String>();
+        result.TotalResultCount = matching.size();
+        result.StartIndex = query.start;
+        result.PageSize = query.pagesize;
+        result.Results = new ArrayList<Map<String, Object>>();
+        int end = (int) Math.min((long) query.start + query.pagesize, matching.size());
+        for (int i = query.start; i < end; i++) {
+            result.Results.add(project(matching.get(i)));
+        }
+        return result;
+    }
+
+    private Map<String, Object> project(Map<String, Object> snapshot) {
+        if (query.fields == null || query.isFieldsTrue) {
+            return snapshot;
+        }
+        Map<String, Object> projected = new LinkedHashMap<String, Object>();
+        for (String field : query.fields) {
+            if (snapshot.containsKey(field)) {
+                projected.put(field, snapshot.get(field));
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Orders snapshots by each sort field in turn. Missing values sort first, then numbers,
+     * then strings, matching the Lookback API's ordering of mixed types.
+     */
+    private static class SortComparator implements Comparator<Map<String, Object>> {
+
+        String[] fields;
+        int[] directions;
+
+        SortComparator(Map<String, Integer> sort) {
+            fields = sort.keySet().toArray(new String[sort.size()]);
+            directions = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                directions[i] = sort.get(fields[i]);
+            }
+        }
+
+        public int compare(Map<String, Object> first, Map<String, Object> second) {
+            for (int i = 0; i < fields.length; i++) {
+                int comparison = compareValues(FindPredicate.normalize(first.get(fields[i])),
+                        FindPredicate.normalize(second.get(fields[i])));
+                if (comparison != 0) {
+                    return comparison * directions[i];
+                }
+            }
+            return 0;
+        }
+
+        private static int compareValues(Object first, Object second) {
+            int firstRank = rank(first);
+            int secondRank = rank(second);
+            if (firstRank != secondRank) {
+                return firstRank < secondRank ? -1 : 1;
+            }
+            Integer comparison = FindPredicate.compareValues(first, second);
+            return comparison == null ? 0 : comparison;
+        }
+
+        private static int rank(Object value) {
+            if (value == null) {
+                return 0;
+            }
+            return value instanceof Number ? 1 : (value instanceof String ? 2 : 3);
+        }
+    }
+}
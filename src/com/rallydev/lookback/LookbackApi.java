@@ -1,7 +1,10 @@
 package com.rallydev.lookback;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
@@ -9,12 +12,20 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Scanner;
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * LookbackApi objects provide an API for communicating with Rally's Lookback API service.
@@ -29,8 +40,12 @@ import java.util.Scanner;
  * whatever query you wish to make:
  *
  *      LookbackQuery query = api.newSnapshotQuery();
+ *
+ * Connections to the Lookback API are pooled and reused by every query created from the
+ * same LookbackApi object. Close the LookbackApi when you are finished with it to release
+ * any connections it is holding open.
  */
-public class LookbackApi {
+public class LookbackApi implements Closeable {
 
     String server;
     String versionMajor;
@@ -39,6 +54,27 @@ public class LookbackApi {
     String username;
     String password;
 
+    NumberPolicy numberPolicy = NumberPolicy.DOUBLE;
+    SymbolTable symbolTable = new SymbolTable();
+    boolean isResponseCompression = true;
+    int requestCompressionThreshold = -1;
+    boolean isRequestCoalescing = false;
+
+    ConnectionPool connectionPool = new ConnectionPool();
+    RequestThrottle throttle = new RequestThrottle();
+    ExecutorService executor;
+    boolean isExecutorShared;
+
+    ResponseCache responseCache;
+    long cacheProbeIntervalMillis = 5 * 60 * 1000;
+    long lastCacheProbe;
+    String latestEtlDate;
+    private final Object cacheLock = new Object();
+
+    ConcurrentMap<String, SettableFuture<byte[]>> inFlight = new ConcurrentHashMap<String, SettableFuture<byte[]>>();
+
+    List<QueryListener> listeners = new CopyOnWriteArrayList<QueryListener>();
+
     /**
      * Create LookbackApi objects for communicating with Rally's Lookback API.
      */
@@ -94,6 +130,249 @@ public class LookbackApi {
         return this;
     }
 
+    /**
+     * Set how numbers in snapshots are decoded. By default every number is a Double, as with
+     * Gson. NumberPolicy.LONG_OR_DOUBLE decodes integral numbers such as OIDs exactly as Longs.
+     * @param numberPolicy - the policy to use for all following queries
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setNumberPolicy(NumberPolicy numberPolicy) {
+        this.numberPolicy = numberPolicy;
+        return this;
+    }
+
+    /**
+     * Set the table used to intern snapshot field names and short string values, so strings
+     * repeated across snapshots and pages share one instance. Each LookbackApi starts with its
+     * own SymbolTable, pass one table to several LookbackApi objects to share it between them,
+     * or null to turn interning off.
+     * @param symbolTable - the table to intern strings through, or null
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+        return this;
+    }
+
+    /**
+     * @return SymbolTable - the table strings are interned through, for its hit rate, or null
+     */
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * Set whether the Lookback API is asked to gzip or deflate its responses, by default true.
+     * Compressed responses are decompressed as they are decoded, without being buffered.
+     * @param isResponseCompression
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setResponseCompression(boolean isResponseCompression) {
+        this.isResponseCompression = isResponseCompression;
+        return this;
+    }
+
+    /**
+     * Gzip request bodies of at least minimumBytes, such as queries with long $in lists.
+     * Off by default, the server must accept gzipped requests for this to be enabled.
+     * @param minimumBytes - smallest request body to compress, or -1 to never compress
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setRequestCompression(int minimumBytes) {
+        this.requestCompressionThreshold = minimumBytes;
+        return this;
+    }
+
+    /**
+     * Configure whether identical queries running at the same time share one request. When
+     * a query is executed while another with the same request body against the same
+     * workspace is still waiting on its response, it waits for that response instead of
+     * sending its own, and decodes its own LookbackResult from the shared body. Off by
+     * default, as the leading query then reads its whole response before decoding it.
+     * Streamed queries are never coalesced.
+     * @param isRequestCoalescing - true to share responses between identical queries
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setRequestCoalescing(boolean isRequestCoalescing) {
+        this.isRequestCoalescing = isRequestCoalescing;
+        return this;
+    }
+
+    /**
+     * Set a cache for query responses. Identical queries against the same workspace are then
+     * answered from the cache until the Lookback API reports a newer ETLDate, either on a
+     * response to another query or on a periodic probe, see setCacheProbeInterval.
+     * Streamed queries are never cached.
+     * @param responseCache - the cache to use, or null to stop caching
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    /**
+     * Set how often the Lookback API's ETLDate is probed before a query is answered from the
+     * response cache, by default every 5 minutes. The probe is a small query of its own, sent
+     * by one query at a time. If it fails the cache is used as it stands until the next probe.
+     * @param probeIntervalMillis - interval in milliseconds
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setCacheProbeInterval(long probeIntervalMillis) {
+        this.cacheProbeIntervalMillis = probeIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Ask the Lookback API for its current ETLDate now, dropping any cached responses
+     * older than it.
+     * @return String - the current ETLDate
+     */
+    public String refreshResponseCache() {
+        try {
+            String etlDate = probeEtlDate();
+            synchronized (this) {
+                lastCacheProbe = System.currentTimeMillis();
+            }
+            return etlDate;
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
+    /**
+     * Set the maximum number of pooled connections this LookbackApi will hold open, by default 20.
+     * @param maxConnections - Maximum number of connections across all servers
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setMaxConnections(int maxConnections) {
+        connectionPool.setMaxTotal(maxConnections);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of pooled connections to a single server, by default 10.
+     * This bounds how many queries can be in flight against the Lookback API at once.
+     * @param maxConnectionsPerRoute - Maximum number of connections to one server
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        connectionPool.setMaxPerRoute(maxConnectionsPerRoute);
+        return this;
+    }
+
+    /**
+     * Set how long a connection is kept alive for reuse when the server doesn't
+     * specify a keep-alive timeout of its own, by default 30 seconds.
+     * @param keepAliveMillis - Keep-alive duration in milliseconds
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setKeepAlive(long keepAliveMillis) {
+        connectionPool.setKeepAliveMillis(keepAliveMillis);
+        return this;
+    }
+
+    /**
+     * Set how long a pooled connection may sit idle before it is evicted, by default 60 seconds.
+     * @param idleTimeoutMillis - Idle timeout in milliseconds
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setConnectionIdleTimeout(long idleTimeoutMillis) {
+        connectionPool.setIdleTimeoutMillis(idleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * Set how many times a request is retried when the Lookback API is throttling or
+     * unavailable (429, 502, 503 and 504 responses) or the connection fails, by default 3.
+     * @param maxRetries - retries after the first attempt, 0 to never retry
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setMaxRetries(int maxRetries) {
+        throttle.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Set the delays between retries, by default from 500 milliseconds up to 30 seconds.
+     * Each retry waits a random time up to double the last limit, starting at initialMillis
+     * and never more than maxMillis. A Retry-After sent by the server is used instead, up
+     * to maxMillis, and holds back every query of this LookbackApi until it has passed.
+     * @param initialMillis - the limit on the wait before the first retry
+     * @param maxMillis - the limit on any wait
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setRetryBackoff(long initialMillis, long maxMillis) {
+        throttle.initialBackoffMillis = initialMillis;
+        throttle.maxBackoffMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * Limit the rate at which requests are sent, across every query made with this
+     * LookbackApi including concurrent fetches and retries. Unlimited by default.
+     * @param requestsPerSecond - the steady rate to allow, 0 to remove the limit
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi setRateLimit(double requestsPerSecond) {
+        throttle.setRateLimit(requestsPerSecond);
+        return this;
+    }
+
+    /**
+     * Set the executor used for background work: asynchronous queries, concurrent page
+     * fetches and read ahead. By default a cached pool of daemon threads is created on first
+     * use. An executor set here is not shut down when the LookbackApi is closed.
+     * fetchAll works on the calling thread as well as the executor, so it completes on any
+     * executor, but the pages of iterateAll are only fetched on the executor: an iterator
+     * consumed from one of the executor's own threads needs another thread free for each
+     * query it pages through.
+     * @param executor - the executor to use, or null to go back to the default
+     * @return LookbackApi - Enables method chaining
+     */
+    public synchronized LookbackApi setExecutor(ExecutorService executor) {
+        if (this.executor != null && !isExecutorShared) {
+            this.executor.shutdown();
+        }
+        this.executor = executor;
+        this.isExecutorShared = executor != null;
+        return this;
+    }
+
+    /**
+     * Register a listener to be told about every request this LookbackApi makes, with its
+     * timings, sizes and snapshot count. QueryMetrics is a listener that keeps histograms.
+     * @param listener - the listener to add
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi addQueryListener(QueryListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * @param listener - a listener previously added with addQueryListener
+     * @return LookbackApi - Enables method chaining
+     */
+    public LookbackApi removeQueryListener(QueryListener listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Release all pooled connections and background threads. The LookbackApi can still be
+     * used after it is closed, a new pool will be opened by the next query.
+     */
+    public void close() {
+        connectionPool.close();
+        synchronized (this) {
+            if (executor != null && !isExecutorShared) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
     /**
      * Create a new LookbackQuery object for configuring a query.
      * @return LookbackQuery - new query object
@@ -104,6 +383,8 @@ public class LookbackApi {
 
     /**
      * Use a LookbackResult to create a new LookbackQuery for the next page of results.
+     * By default the next page starts pagesize snapshots further into the results, for queries
+     * configured with useKeysetPagination it starts after the last snapshot of resultSet.
      * @param resultSet - The LookbackResult representing the previous page of results
      * @return LookbackQuery - Query object for the next page of data
      */
@@ -111,36 +392,378 @@ public class LookbackApi {
         return new LookbackQuery(resultSet, this);
     }
 
+    synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lookback-%d").build());
+        }
+        return executor;
+    }
+
+    ListeningExecutorService getListeningExecutor() {
+        return MoreExecutors.listeningDecorator(getExecutor());
+    }
+
     LookbackResult executeQuery(LookbackQuery query) throws IOException {
-        String requestJson = query.getRequestJson();
-        HttpResponse response = executeRequest(requestJson);
-        LookbackResult result = buildLookbackResult(response);
+        QueryEvent event = new QueryEvent(query);
+        try {
+            LookbackResult result;
+            if (responseCache != null) {
+                result = executeCachedQuery(query, event);
+            } else if (isRequestCoalescing) {
+                result = executeCoalescedQuery(query, event);
+            } else {
+                result = executeUncachedQuery(query, event);
+            }
+            if (!event.isCached) {
+                result.responseNanos = System.nanoTime() - event.beginNanos;
+            }
+            fireQueryCompleted(event, result);
+            return result;
+        } catch (IOException exception) {
+            fireQueryFailed(event, exception);
+            throw exception;
+        } catch (RuntimeException exception) {
+            fireQueryFailed(event, exception);
+            throw exception;
+        }
+    }
+
+    private LookbackResult executeUncachedQuery(LookbackQuery query, QueryEvent event) throws IOException {
+        HttpUriRequest request = createRequest(query.getRequestBytes());
+        HttpResponse response = executeRequest(request, event);
+        LookbackResult result = buildLookbackResult(response, query, event);
         return result.validate(query);
     }
 
-    private HttpResponse executeRequest(String requestJson) throws IOException {
-        HttpUriRequest request = createRequest(requestJson);
-        HttpClient httpClient = new DefaultHttpClient();
-        return httpClient.execute(request);
+    private LookbackResult executeCachedQuery(LookbackQuery query, QueryEvent event) throws IOException {
+        if (claimCacheProbe()) {
+            try {
+                probeEtlDate();
+            } catch (IOException exception) {
+                // The cache isn't refreshed, the query itself may still be answered
+            } catch (LookbackException exception) {
+                // As above
+            }
+        }
+
+        byte[] requestBody = query.getRequestBytes();
+        String key = buildCacheKey(new String(requestBody, "UTF-8"));
+        byte[] body = responseCache.get(key);
+        if (body != null) {
+            long decodeStart = System.nanoTime();
+            LookbackResult cached = decodeResult(body, query);
+            cached.uncompressedBytes = body.length;
+            event.isCached = true;
+            event.decodeNanos = System.nanoTime() - decodeStart;
+            return cached.validate(query);
+        }
+
+        FetchedBody fetched = isRequestCoalescing
+                ? fetchCoalescedBody(requestBody, key, event)
+                : fetchBody(requestBody, event);
+        LookbackResult result = decodeFetchedBody(fetched, query, event);
+        cacheResponse(key, fetched.body, result.ETLDate);
+        return result;
     }
 
-    private LookbackResult buildLookbackResult(HttpResponse response) throws IOException {
-        HttpEntity responseBody = validateResponse(response);
-        String json = getResponseJson(responseBody);
-        return serializeLookbackResultFromJson(json);
+    private LookbackResult executeCoalescedQuery(LookbackQuery query, QueryEvent event) throws IOException {
+        byte[] requestBody = query.getRequestBytes();
+        String key = buildCacheKey(new String(requestBody, "UTF-8"));
+        return decodeFetchedBody(fetchCoalescedBody(requestBody, key, event), query, event);
     }
 
-    private HttpUriRequest createRequest(String requestJson) throws IOException {
+    /**
+     * Read a response body whole, sharing it with any identical request already in flight
+     * rather than sending another. The first request for a key sends it and publishes the
+     * body, or its failure, to every request that arrived while it was in flight.
+     */
+    private FetchedBody fetchCoalescedBody(byte[] requestBody, String key, QueryEvent event) throws IOException {
+        SettableFuture<byte[]> pending = SettableFuture.create();
+        SettableFuture<byte[]> leader = inFlight.putIfAbsent(key, pending);
+        if (leader != null) {
+            event.isCoalesced = true;
+            return new FetchedBody(awaitBody(leader), null);
+        }
+
+        try {
+            FetchedBody fetched = fetchBody(requestBody, event);
+            pending.set(fetched.body);
+            return fetched;
+        } catch (IOException exception) {
+            pending.setException(exception);
+            throw exception;
+        } catch (RuntimeException exception) {
+            pending.setException(exception);
+            throw exception;
+        } finally {
+            inFlight.remove(key, pending);
+        }
+    }
+
+    private static byte[] awaitBody(SettableFuture<byte[]> leader) throws IOException {
+        try {
+            return leader.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical query");
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            throw new LookbackException(cause);
+        }
+    }
+
+    private FetchedBody fetchBody(byte[] requestBody, QueryEvent event) throws IOException {
+        HttpResponse response = executeRequest(createRequest(requestBody), event);
+        ResponseBody responseBody = new ResponseBody(validateResponse(response));
+        InputStream content = responseBody.getContent();
+        try {
+            return new FetchedBody(ByteStreams.toByteArray(content), responseBody);
+        } finally {
+            content.close();
+        }
+    }
+
+    private LookbackResult decodeFetchedBody(FetchedBody fetched, LookbackQuery query, QueryEvent event) throws IOException {
+        long decodeStart = System.nanoTime();
+        LookbackResult result = decodeResult(fetched.body, query).validate(query);
+        if (fetched.responseBody != null) {
+            fetched.responseBody.recordSizes(result);
+            fetched.responseBody.recordTimings(event);
+        } else {
+            result.uncompressedBytes = fetched.body.length;
+            event.decodeNanos = System.nanoTime() - decodeStart;
+        }
+        return result;
+    }
+
+    /**
+     * Claim the next ETLDate probe if one is due, so that of the queries arriving once the
+     * interval has passed only one probes. A failed probe waits out the interval as well.
+     */
+    private synchronized boolean claimCacheProbe() {
+        long now = System.currentTimeMillis();
+        if (now - lastCacheProbe < cacheProbeIntervalMillis) {
+            return false;
+        }
+        lastCacheProbe = now;
+        return true;
+    }
+
+    private String probeEtlDate() throws IOException {
+        LookbackQuery probe = newSnapshotQuery()
+                .addFindClause("ObjectID", -1)
+                .setPagesize(1)
+                .requireFields("ObjectID");
+        String etlDate = executeUncachedQuery(probe, new QueryEvent(probe)).ETLDate;
+        recordEtlDate(etlDate);
+        return etlDate;
+    }
+
+    /**
+     * Track the newest ETLDate seen, invalidating cached responses when it moves forward.
+     * @return true if etlDate is the newest ETLDate seen
+     */
+    private boolean recordEtlDate(String etlDate) {
+        if (etlDate == null) {
+            return false;
+        }
+        synchronized (cacheLock) {
+            if (latestEtlDate != null && etlDate.compareTo(latestEtlDate) < 0) {
+                return false;
+            }
+            if (!etlDate.equals(latestEtlDate)) {
+                latestEtlDate = etlDate;
+                ResponseCache cache = responseCache;
+                if (cache != null) {
+                    cache.invalidateOlderThan(etlDate);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Cache a response if it is from the newest ETLDate seen. The check and the put share a
+     * lock with invalidation, so a response from before a refresh can't be cached after it.
+     */
+    private void cacheResponse(String key, byte[] body, String etlDate) {
+        synchronized (cacheLock) {
+            ResponseCache cache = responseCache;
+            if (cache != null && recordEtlDate(etlDate)) {
+                cache.put(key, body, etlDate);
+            }
+        }
+    }
+
+    /**
+     * Responses are keyed on the user as well as the query, so a cache shared between
+     * LookbackApi objects never answers one user's query with another's response.
+     */
+    private String buildCacheKey(String requestJson) {
+        return server + "/" + buildApiVersion() + "/" + workspace + "/" + username + "\n" + requestJson;
+    }
+
+    SnapshotStream openStream(LookbackQuery query) throws IOException {
+        QueryEvent event = new QueryEvent(query);
+        final HttpUriRequest request = createRequest(query.getRequestBytes());
+        Closeable connection = new Closeable() {
+            public void close() {
+                request.abort();
+            }
+        };
+
+        try {
+            HttpResponse response = executeRequest(request, event);
+            ResponseBody body = new ResponseBody(validateResponse(response));
+            return new SnapshotStream(openDecoder(body.getContent()), query, connection, body, event);
+        } catch (IOException exception) {
+            connection.close();
+            fireQueryFailed(event, exception);
+            throw exception;
+        } catch (RuntimeException exception) {
+            connection.close();
+            fireQueryFailed(event, exception);
+            throw exception;
+        }
+    }
+
+    void fireQueryCompleted(QueryEvent event, LookbackResult result) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        event.recordResult(result);
+        for (QueryListener listener : listeners) {
+            try {
+                listener.queryCompleted(event);
+            } catch (RuntimeException ignored) {
+                // a broken listener must not fail the query it is observing
+            }
+        }
+    }
+
+    void fireQueryFailed(QueryEvent event, Exception failure) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        event.recordFailure();
+        for (QueryListener listener : listeners) {
+            try {
+                listener.queryFailed(event, failure);
+            } catch (RuntimeException ignored) {
+                // a broken listener must not hide the original failure
+            }
+        }
+    }
+
+    /**
+     * Execute a request, retrying as the throttle allows, and recording on event how long the
+     * final attempt's connection took to become ready and how long the server then took to
+     * start responding.
+     */
+    private HttpResponse executeRequest(HttpUriRequest request, QueryEvent event) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            throttle.acquire();
+            HttpClient httpClient = connectionPool.getClient();
+            HttpContext context = new BasicHttpContext();
+            long sent = System.nanoTime();
+            HttpResponse response;
+            try {
+                response = httpClient.execute(request, context);
+            } catch (IOException exception) {
+                if (request.isAborted() || !throttle.isRetryable(exception, attempt)) {
+                    throw exception;
+                }
+                event.retryCount++;
+                throttle.backOff(attempt, null);
+                continue;
+            }
+            long received = System.nanoTime();
+
+            if (throttle.isRetryable(response, attempt)) {
+                EntityUtils.consume(response.getEntity());
+                event.retryCount++;
+                throttle.backOff(attempt, response);
+                continue;
+            }
+
+            Long connected = (Long) context.getAttribute(ConnectionPool.CONNECTED_AT);
+            long ready = connected == null ? sent : connected;
+            event.connectNanos = ready - sent;
+            event.firstByteNanos = received - ready;
+            return response;
+        }
+    }
+
+    private LookbackResult buildLookbackResult(HttpResponse response, LookbackQuery query, QueryEvent event) throws IOException {
+        ResponseBody responseBody = new ResponseBody(validateResponse(response));
+        LookbackResult result = decodeResult(responseBody.getContent(), query);
+        responseBody.recordSizes(result);
+        responseBody.recordTimings(event);
+        return result;
+    }
+
+    private LookbackResult decodeResult(InputStream responseStream, LookbackQuery query) throws IOException {
+        if (query.isLazy) {
+            try {
+                return LazyPageDecoder.decode(ByteStreams.toByteArray(responseStream), numberPolicy, symbolTable);
+            } finally {
+                responseStream.close();
+            }
+        }
+        SnapshotDecoder decoder = openDecoder(responseStream);
+        try {
+            return query.isColumnar ? decoder.readColumnarResult() : decoder.readResult();
+        } finally {
+            decoder.close();
+        }
+    }
+
+    private LookbackResult decodeResult(byte[] body, LookbackQuery query) throws IOException {
+        if (query.isLazy) {
+            return LazyPageDecoder.decode(body, numberPolicy, symbolTable);
+        }
+        return decodeResult(new ByteArrayInputStream(body), query);
+    }
+
+    private HttpUriRequest createRequest(byte[] body) throws IOException {
         HttpPost post = new HttpPost(buildUrl());
         addAuthHeaderToRequest(post);
-        post.setEntity(new StringEntity(requestJson, "UTF-8"));
+        if (isResponseCompression) {
+            post.addHeader("Accept-Encoding", "gzip, deflate");
+        }
+
+        if (requestCompressionThreshold >= 0 && body.length >= requestCompressionThreshold) {
+            body = gzip(body);
+            post.addHeader("Content-Encoding", "gzip");
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType("text/plain; charset=UTF-8");
+        post.setEntity(entity);
         return post;
     }
 
-    private HttpEntity validateResponse(HttpResponse response) {
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(body);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private HttpEntity validateResponse(HttpResponse response) throws IOException {
         if (authorizationFailed(response)) {
+            EntityUtils.consume(response.getEntity());
             throw new LookbackException("Authorization failed, check username and password");
         }
+        int status = response.getStatusLine().getStatusCode();
+        if (RequestThrottle.isRetryable(status)) {
+            EntityUtils.consume(response.getEntity());
+            throw new LookbackException("Lookback API unavailable, responded " + response.getStatusLine());
+        }
         HttpEntity responseBody = response.getEntity();
         if (responseBody == null) {
             throw new LookbackException("No data received from server");
@@ -148,18 +771,8 @@ public class LookbackApi {
         return responseBody;
     }
 
-    private String getResponseJson(HttpEntity responseBody) throws IOException {
-        InputStream responseStream = responseBody.getContent();
-        try {
-            return readFromStream(responseStream);
-        } finally {
-            responseStream.close();
-        }
-    }
-
-    private LookbackResult serializeLookbackResultFromJson(String json) {
-        Gson serializer = new GsonBuilder().serializeNulls().create();
-        return serializer.fromJson(json, LookbackResult.class);
+    private SnapshotDecoder openDecoder(InputStream responseStream) throws IOException {
+        return new SnapshotDecoder(new InputStreamReader(responseStream, "UTF-8"), numberPolicy, symbolTable);
     }
 
     private boolean authorizationFailed(HttpResponse response) {
@@ -180,16 +793,6 @@ public class LookbackApi {
         request.addHeader("Authorization", getBasicAuthHeader());
     }
 
-    private String readFromStream(InputStream stream) {
-        Scanner scanner = new Scanner(stream);
-        scanner.useDelimiter("\\A");
-        if (scanner.hasNext()) {
-            return scanner.next();
-        } else {
-            return "";
-        }
-    }
-
     private String buildApiVersion() {
         return "v" + versionMajor + "." + versionMinor;
     }
@@ -213,4 +816,19 @@ public class LookbackApi {
         String tokenString = new String(encodedToken);
         return "Basic " + tokenString;
     }
+
+    /**
+     * A response body read whole. The ResponseBody it was read through is kept by the
+     * request that read it, and is null for requests that shared the body.
+     */
+    private static class FetchedBody {
+
+        byte[] body;
+        ResponseBody responseBody;
+
+        FetchedBody(byte[] body, ResponseBody responseBody) {
+            this.body = body;
+            this.responseBody = responseBody;
+        }
+    }
 }
@@ -1,9 +1,10 @@
 package com.rallydev.lookback;
 
-import com.rits.cloning.Cloner;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * LookbackQuery objects present an interface for configuring a query before executing it.
@@ -35,8 +36,16 @@ public class LookbackQuery {
     Set<String> hydrate;
 
     Map<String, Object> properties;
+    Map<String, Object> seekClause;
+
+    CompiledQuery compiled;
+    boolean isShared = false;
+    PageSizer pageSizer;
 
     boolean isFieldsTrue = false;
+    boolean isColumnar = false;
+    boolean isLazy = false;
+    boolean isKeyset = false;
     int pagesize = 20000;
     int start = 0;
 
@@ -46,8 +55,15 @@ public class LookbackQuery {
 
     LookbackQuery(LookbackResult previousPage, LookbackApi parentApi) {
         this.parentApi = parentApi;
-        cloneFields(previousPage.queryContext);
-        updateToNextPage();
+        shareFields(previousPage.queryContext);
+        if (isKeyset) {
+            seekPastPage(previousPage);
+        } else {
+            updateToNextPage(previousPage);
+        }
+        if (pageSizer != null) {
+            resizeAfter(previousPage);
+        }
     }
 
     /**
@@ -62,6 +78,210 @@ public class LookbackQuery {
         }
     }
 
+    /**
+     * Execute this LookbackQuery in the background, returning immediately. Callbacks can be
+     * attached to the returned future with Guava's Futures utilities:
+     *
+     *      Futures.addCallback(query.executeAsync(), new FutureCallback<LookbackResult>() {
+     *          public void onSuccess(LookbackResult resultSet) { ... }
+     *          public void onFailure(Throwable failure) { ... }
+     *      });
+     *
+     * Queries run on the LookbackApi's executor, see setExecutor. Each query occupies a thread
+     * while its request is in flight, and requests beyond the connections per route wait for
+     * a pooled connection.
+     * @return ListenableFuture - completes with the result, or fails with a LookbackException
+     */
+    public ListenableFuture<LookbackResult> executeAsync() {
+        validateQuery();
+        return parentApi.getListeningExecutor().submit(new Callable<LookbackResult>() {
+            public LookbackResult call() {
+                return execute();
+            }
+        });
+    }
+
+    /**
+     * Execute this LookbackQuery and fetch every following page of results. Once the first page
+     * reports TotalResultCount the remaining pages are requested concurrently, with at most
+     * parallelism requests in flight at once. Pages are returned in order.
+     * Note: concurrent requests are also bounded by LookbackApi's connections per route.
+     * @param parallelism - maximum number of pages to request at once
+     * @return List - every page of results, in page order
+     */
+    public List<LookbackResult> fetchAll(int parallelism) {
+        return fetchAll(parallelism, true);
+    }
+
+    /**
+     * Execute this LookbackQuery and fetch every following page of results concurrently.
+     * @param parallelism - maximum number of pages to request at once
+     * @param preserveOrder - true to return pages in page order, false to return them in
+     *                      the order they completed
+     * @return List - every page of results
+     */
+    public List<LookbackResult> fetchAll(int parallelism, boolean preserveOrder) {
+        validateQuery();
+        return new PageFetcher(parentApi, parallelism, preserveOrder).fetchAll(this);
+    }
+
+    /**
+     * Iterate over every snapshot on every page of this query. The next page is fetched in
+     * the background while the current one is being consumed.
+     * @return SnapshotIterator - an iterator across all pages of results.
+     */
+    public SnapshotIterator iterateAll() {
+        return iterateAll(1);
+    }
+
+    /**
+     * Iterate over every snapshot on every page of this query, fetching up to readAhead
+     * pages in the background while the current one is being consumed.
+     * @param readAhead - maximum number of fetched pages waiting to be iterated
+     * @return SnapshotIterator - an iterator across all pages of results.
+     */
+    public SnapshotIterator iterateAll(int readAhead) {
+        validateQuery();
+        return new SnapshotIterator(parentApi, this, readAhead);
+    }
+
+    /**
+     * Split this query into shards over non-overlapping ranges of _ValidFrom. The shard
+     * boundaries are chosen by probing the server so each shard holds a similar number of
+     * snapshots, and each shard can then be paged through independently and concurrently.
+     * @param shards - number of shards to split the query into
+     * @return ShardedQuery - the split query
+     */
+    public ShardedQuery shardByValidFrom(int shards) {
+        validateQuery();
+        return new ShardedQuery(parentApi, this, "_ValidFrom", true, shards);
+    }
+
+    /**
+     * Split this query into shards over non-overlapping ranges of ObjectID, see shardByValidFrom.
+     * @param shards - number of shards to split the query into
+     * @return ShardedQuery - the split query
+     */
+    public ShardedQuery shardByObjectId(int shards) {
+        validateQuery();
+        return new ShardedQuery(parentApi, this, "ObjectID", false, shards);
+    }
+
+    /**
+     * Split this query into chunks of at most 1000 values of its longest $in list, to be
+     * paged through concurrently, see chunkInClauses(int).
+     * @return ChunkedQuery - the split query
+     */
+    public ChunkedQuery chunkInClauses() {
+        return chunkInClauses(ChunkedQuery.DEFAULT_MAX_VALUES);
+    }
+
+    /**
+     * Split this query into chunks of its longest $in list, for lists too long to send in
+     * one request. The list is divided into equal chunks of at most maxValuesPerChunk values,
+     * and each chunk can then be paged through independently and concurrently. A query
+     * without a $in list over the limit is left whole.
+     * @param maxValuesPerChunk - the most $in values to send in one request
+     * @return ChunkedQuery - the split query
+     */
+    public ChunkedQuery chunkInClauses(int maxValuesPerChunk) {
+        validateQuery();
+        return new ChunkedQuery(parentApi, this, maxValuesPerChunk);
+    }
+
+    /**
+     * Read only the snapshots of this query that were created or closed since a previous
+     * sync, see syncSince(Watermark, SnapshotHandler).
+     * @param since - the watermark returned by the previous sync, or null to read everything
+     * @return SyncResult - the new and closed snapshots, and the watermark for the next sync
+     */
+    public SyncResult syncSince(Watermark since) {
+        final List<Map<String, Object>> snapshots = new ArrayList<Map<String, Object>>();
+        Watermark watermark = syncSince(since, new SnapshotHandler() {
+            public void handleSnapshot(Map<String, Object> snapshot) {
+                snapshots.add(snapshot);
+            }
+        });
+        return new SyncResult(snapshots, watermark);
+    }
+
+    /**
+     * Read only the snapshots of this query that were created or closed since a previous
+     * sync. The find is narrowed to snapshots with a _ValidFrom or a closing _ValidTo after
+     * the watermark, and every page of the delta is handed to the handler. Save the returned
+     * watermark and pass it to the next sync:
+     *
+     *      Watermark watermark = query.syncSince(null, store);      // first run reads everything
+     *      Watermark next = query.syncSince(watermark, store);      // later runs read the changes
+     *
+     * A snapshot that was closed since the watermark is delivered again with its new _ValidTo,
+     * consumers should replace the version they hold with the same ObjectID and _ValidFrom.
+     * @param since - the watermark returned by the previous sync, or null to read everything
+     * @param handler - receives each new or closed snapshot
+     * @return Watermark - the watermark for the next sync
+     */
+    public Watermark syncSince(Watermark since, SnapshotHandler handler) {
+        validateQuery();
+        return new IncrementalSync(parentApi, this).sync(since, handler);
+    }
+
+    /**
+     * Answer this LookbackQuery from snapshots already held locally, such as an earlier
+     * result, a SnapshotStore or a cache, without contacting the Lookback API. The find is
+     * compiled into a predicate and evaluated against each snapshot, and sort, start,
+     * pagesize and fields are applied as the server would:
+     *
+     *      List<Map<String, Object>> history = query.execute().Results;
+     *      LookbackResult accepted = api.newSnapshotQuery()
+     *                                  .addFindClause("ScheduleState", "Accepted")
+     *                                  .sortBy("_ValidFrom", -1)
+     *                                  .executeLocally(history);
+     *
+     * $gt, $gte, $lt, $lte, $in, $nin, $ne, $exists, $and, $or and $nor are supported, other operators
+     * and directives such as __At throw a LookbackException. Hydration can't be applied locally and is ignored, and the
+     * snapshots are always returned in the Results list.
+     * @param snapshots - the snapshots to query
+     * @return LookbackResult - the matching page of snapshots
+     */
+    public LookbackResult executeLocally(Iterable<Map<String, Object>> snapshots) {
+        validateQuery();
+        LookbackResult result = new LocalQuery(this).execute(snapshots);
+        result.queryContext = this;
+        return result;
+    }
+
+    /**
+     * Execute this LookbackQuery, handing each snapshot to the handler as it is read from the
+     * server instead of collecting the page into memory.
+     * @param handler - receives each snapshot in turn
+     * @return LookbackResult - the envelope of the returned data, its Results list is empty.
+     */
+    public LookbackResult execute(SnapshotHandler handler) {
+        SnapshotStream stream = openStream();
+        try {
+            while (stream.hasNext()) {
+                handler.handleSnapshot(stream.next());
+            }
+            return stream.getResult();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Execute this LookbackQuery and return a stream over the snapshots of the page as they
+     * are read from the server. The stream must be closed when finished with.
+     * @return SnapshotStream - an iterator over the returned snapshots.
+     */
+    public SnapshotStream openStream() {
+        try {
+            validateQuery();
+            return parentApi.openStream(this);
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
     /**
      * Sets the page size for the query.
      * @param pagesize
@@ -72,6 +292,38 @@ public class LookbackQuery {
         return this;
     }
 
+    /**
+     * Configures the query to tune its pagesize from page to page. Each page's response time
+     * and size are measured, and following pages are sized to come back within targetMillis
+     * and to decode to no more than maxBytesPerPage, growing at most twofold per page. The
+     * first page uses the pagesize already set, so set a modest one when fields are wide.
+     * Pages the server returns short, or warns about, cap the pagesize from then on.
+     * This applies to getQueryForNextPage, iterateAll and syncSince, and fetchAll sizes its
+     * concurrent pages once from the first page.
+     * @param targetMillis - response time to aim for per page, or 0 for no target
+     * @param maxBytesPerPage - decoded response size to stay within, or 0 for no limit
+     * @return LookbackQuery - Enables method chaining
+     */
+    public LookbackQuery useAdaptivePagesize(long targetMillis, long maxBytesPerPage) {
+        return useAdaptivePagesize(targetMillis, maxBytesPerPage, 100, 20000);
+    }
+
+    /**
+     * Configures the query to tune its pagesize from page to page, within bounds.
+     * @param targetMillis - response time to aim for per page, or 0 for no target
+     * @param maxBytesPerPage - decoded response size to stay within, or 0 for no limit
+     * @param minPagesize - the smallest pagesize to use
+     * @param maxPagesize - the largest pagesize to use
+     * @return LookbackQuery - Enables method chaining
+     */
+    public LookbackQuery useAdaptivePagesize(long targetMillis, long maxBytesPerPage, int minPagesize, int maxPagesize) {
+        if (minPagesize < 1 || maxPagesize < minPagesize) {
+            throw new LookbackException("Adaptive pagesize requires 1 <= minPagesize <= maxPagesize");
+        }
+        this.pageSizer = new PageSizer(targetMillis * 1000000L, maxBytesPerPage, minPagesize, maxPagesize);
+        return this;
+    }
+
     /**
      * Sets the start index for the query.
      * @param start
@@ -94,6 +346,57 @@ public class LookbackQuery {
         return this;
     }
 
+    /**
+     * Configures the query to return its snapshots column by column. The snapshots will be
+     * found in the Columns field of the LookbackResult instead of its Results list, with
+     * numbers and timestamps stored as primitives and strings dictionary encoded.
+     * Queries for following pages inherit this setting.
+     * @return LookbackQuery - Enables method chaining
+     */
+    public LookbackQuery useColumnarResults() {
+        if (isLazy) {
+            throw new LookbackException("Cannot use columnar results with lazy snapshots");
+        }
+        this.isColumnar = true;
+        return this;
+    }
+
+    /**
+     * Configures the query to return LazySnapshots in the Results of its LookbackResult,
+     * which decode each field only when it is first read. The response is read whole, and
+     * each snapshot is kept as the bytes of its JSON object until its fields are read.
+     * Suits pipelines that read only a few fields of each snapshot, such as filters.
+     * Queries for following pages inherit this setting, it doesn't apply to openStream.
+     * @return LookbackQuery - Enables method chaining
+     */
+    public LookbackQuery useLazySnapshots() {
+        if (isColumnar) {
+            throw new LookbackException("Cannot use lazy snapshots with columnar results");
+        }
+        this.isLazy = true;
+        return this;
+    }
+
+    /**
+     * Configures the query to page by key rather than by offset. Snapshots are sorted by
+     * _ValidFrom and then ObjectID, and each following page is requested by asking for the
+     * snapshots after the last one seen instead of advancing start. This keeps the cost of each
+     * page flat through a long result set and doesn't skip or repeat snapshots when data is
+     * added between pages. This replaces any sort configured on the query, and adds
+     * _ValidFrom and ObjectID to the required fields if any have been set.
+     * @return LookbackQuery - Enables method chaining
+     */
+    public LookbackQuery useKeysetPagination() {
+        this.isKeyset = true;
+        sort = null;
+        sortBy("_ValidFrom");
+        sortBy("ObjectID");
+        if (fields != null) {
+            requireFields("_ValidFrom", "ObjectID");
+        }
+        return this;
+    }
+
     /**
      * Adds fields to the 'fields' parameter of the query. These fields will be included
      * on any Snapshots that have them. This is incompatible with setFieldsTrue, only one can be utilized.
@@ -102,6 +405,7 @@ public class LookbackQuery {
      * @return LookbackQuery - Enables method chaining
      */
     public LookbackQuery requireFields(String... requiredFields) {
+        beforeChange();
         if (fields == null) {
             fields = new HashSet<String>();
         }
@@ -132,9 +436,10 @@ public class LookbackQuery {
         if (direction != 1 && direction != -1) {
             throw new LookbackException("Sort only supports values of 1 or -1");
         }
+        beforeChange();
 
         if (sort == null) {
-            sort = new HashMap<String, Integer>();
+            sort = new LinkedHashMap<String, Integer>();
         }
 
         sort.put(field, direction);
@@ -149,6 +454,7 @@ public class LookbackQuery {
      * @return LookbackQuery - Enables method chaining
      */
     public LookbackQuery hydrateFields(String... fields) {
+        beforeChange();
         if (hydrate == null) {
             hydrate = new HashSet<String>();
         }
@@ -185,57 +491,162 @@ public class LookbackQuery {
      *
      *      query.addFindClause("$or", orClause);
      *
+     * The value is copied, changing the caller's maps and lists afterwards doesn't change
+     * the query.
      * @param field
      * @param value
      * @return LookbackQuery - Enables method chaining
      */
     public LookbackQuery addFindClause(String field, Object value) {
+        beforeChange();
         if (find == null) {
             find = new HashMap<String, Object>();
         }
 
-        find.put(field, value);
+        find.put(field, FindClauses.copyOf(value));
         return this;
     }
 
     /**
      * Add a query parameter not specified otherwise. This allows for future changes
-     * to the lookback api that may require new parameters.
+     * to the lookback api that may require new parameters. Like find clauses, the value
+     * is copied.
      * @param parameter - parameter name
      * @param value - parameter value
      * @return LookbackQuery - Enables method chaining
      */
     public LookbackQuery addProperty(String parameter, Object value) {
+        beforeChange();
         if (properties == null) {
             properties = new HashMap<String, Object>();
         }
 
-        properties.put(parameter, value);
+        properties.put(parameter, FindClauses.copyOf(value));
         return this;
     }
 
     String getRequestJson() {
-        QueryBuilder query = new QueryBuilder();
-        addParametersToQuery(query);
-        return query.getQueryJson();
+        return getCompiledQuery().toJson(start, pagesize);
+    }
+
+    byte[] getRequestBytes() {
+        return getCompiledQuery().toBytes(start, pagesize);
+    }
+
+    LookbackQuery copyAtStart(int start) {
+        LookbackQuery copy = new LookbackQuery(parentApi);
+        copy.shareFields(this);
+        copy.start = start;
+        return copy;
+    }
+
+    /**
+     * Get the compiled request body, compiling it again if the query has changed since.
+     */
+    private CompiledQuery getCompiledQuery() {
+        CompiledQuery current = compiled;
+        if (current == null || !current.isCompiledFrom(this)) {
+            current = new CompiledQuery(this);
+            compiled = current;
+        }
+        return current;
     }
 
-    private void cloneFields(LookbackQuery previousQuery) {
-        Cloner cloner = new Cloner();
+    /**
+     * Take on the configuration of another query. The collections are shared rather than
+     * copied, along with the compiled request, and whichever query changes first copies them.
+     * Nested find and property values are never changed in place once added, so sharing
+     * them is safe.
+     */
+    private void shareFields(LookbackQuery previousQuery) {
+        previousQuery.isShared = true;
+        isShared = true;
+        compiled = previousQuery.compiled;
 
-        find = cloner.deepClone(previousQuery.find);
-        sort = cloner.deepClone(previousQuery.sort);
-        fields = cloner.deepClone(previousQuery.fields);
-        hydrate = cloner.deepClone(previousQuery.hydrate);
-        properties = cloner.deepClone(previousQuery.properties);
+        find = previousQuery.find;
+        sort = previousQuery.sort;
+        fields = previousQuery.fields;
+        hydrate = previousQuery.hydrate;
+        properties = previousQuery.properties;
 
         isFieldsTrue = previousQuery.isFieldsTrue;
+        isColumnar = previousQuery.isColumnar;
+        isLazy = previousQuery.isLazy;
+        isKeyset = previousQuery.isKeyset;
+        seekClause = previousQuery.seekClause;
         pagesize = previousQuery.pagesize;
         start = previousQuery.start;
+        pageSizer = previousQuery.pageSizer;
+    }
+
+    /**
+     * Called before the configuration is changed in place, taking private copies of any
+     * collections shared with another query.
+     */
+    private void beforeChange() {
+        compiled = null;
+        if (isShared) {
+            find = find == null ? null : new HashMap<String, Object>(find);
+            sort = sort == null ? null : new LinkedHashMap<String, Integer>(sort);
+            fields = fields == null ? null : new HashSet<String>(fields);
+            hydrate = hydrate == null ? null : new HashSet<String>(hydrate);
+            properties = properties == null ? null : new HashMap<String, Object>(properties);
+            isShared = false;
+        }
+    }
+
+    /**
+     * Advance start past the previous page. Adaptively sized pages advance by the PageSize
+     * the server reports, in case it served fewer snapshots than were requested.
+     */
+    private void updateToNextPage(LookbackResult previousPage) {
+        if (pageSizer != null && previousPage.PageSize > 0 && previousPage.PageSize < pagesize) {
+            start += previousPage.PageSize;
+        } else {
+            start += pagesize;
+        }
     }
 
-    private void updateToNextPage() {
-        start += pagesize;
+    /**
+     * Size this page from what was learned fetching the previous one.
+     */
+    void resizeAfter(LookbackResult previousPage) {
+        int previousPagesize = pagesize;
+        pageSizer = pageSizer.observe(previousPage, previousPagesize);
+        pagesize = pageSizer.nextPagesize(previousPagesize);
+    }
+
+    /**
+     * Seek past the last snapshot of the previous page. The seek clause takes the place of
+     * start, so following pages always start at 0.
+     */
+    private void seekPastPage(LookbackResult previousPage) {
+        int size = previousPage.Columns != null ? previousPage.Columns.size()
+                : previousPage.Results == null ? 0 : previousPage.Results.size();
+        if (size == 0) {
+            throw new LookbackException("Keyset pagination can't seek past an empty page");
+        }
+
+        Object lastValidFrom;
+        Object lastObjectId;
+        if (previousPage.Columns != null) {
+            ColumnarPage.Row last = previousPage.Columns.getRow(size - 1);
+            lastValidFrom = last.getString("_ValidFrom");
+            lastObjectId = last.get("ObjectID");
+        } else {
+            Map<String, Object> last = previousPage.Results.get(size - 1);
+            lastValidFrom = last.get("_ValidFrom");
+            lastObjectId = last.get("ObjectID");
+        }
+
+        if (lastValidFrom == null || lastObjectId == null) {
+            throw new LookbackException("Keyset pagination requires _ValidFrom and ObjectID on every snapshot");
+        }
+
+        Map<String, Object> sameValidFrom = FindClauses.compare("ObjectID", "$gt", FindClauses.exactNumber(lastObjectId));
+        sameValidFrom.put("_ValidFrom", lastValidFrom);
+        seekClause = FindClauses.or(FindClauses.compare("_ValidFrom", "$gt", lastValidFrom), sameValidFrom);
+        start = 0;
     }
 
     private LookbackResult validateAndRun() throws IOException {
@@ -259,14 +670,4 @@ public class LookbackQuery {
             throw new LookbackException("Cannot execute query without find");
         }
     }
-
-    private void addParametersToQuery(QueryBuilder query) {
-        query.addField("find", find);
-        query.addField("start", start);
-        query.addField("pagesize", pagesize);
-        query.addField("fields", fields);
-        query.addField("hydrate", hydrate);
-        query.addField("sort", sort);
-        query.mergeProperties(properties);
-    }
 }
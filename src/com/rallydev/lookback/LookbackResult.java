@@ -70,6 +70,12 @@ public class LookbackResult {
      */
     public List<Map<String, Object>> Results;
 
+    /**
+     * The snapshots stored column by column, only present when the query was configured
+     * with useColumnarResults, in which case Results is empty.
+     */
+    public ColumnarPage Columns;
+
     /**
      * Get an iterator for the Lookback Snapshots contained in this result set.
      * @return Iterator
@@ -94,7 +100,28 @@ public class LookbackResult {
         return StartIndex + PageSize < TotalResultCount;
     }
 
-    LookbackQuery queryContext;
+    /**
+     * Get the number of response bytes read from the network for this result, before
+     * decompression. Responses answered from a ResponseCache read nothing from the network.
+     * For a SnapshotStream this is known once the stream has been read to the end.
+     * @return long
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Get the number of response bytes decoded for this result, after decompression.
+     * @return long
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    transient LookbackQuery queryContext;
+    transient long compressedBytes;
+    transient long uncompressedBytes;
+    transient long responseNanos;
 
     LookbackResult validate(LookbackQuery context) {
         if (Errors != null && Errors.size() > 0) {
@@ -0,0 +1,217 @@
+package com.rallydev.lookback;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The default ResponseCache. Responses are held in memory up to a total size, evicting the
+ * least recently used first. Given a directory, responses are also written to disk, where
+ * they survive eviction from memory and restarts, and are promoted back into memory on use.
+ *
+ *      LookbackApi api = new LookbackApi()
+ *                          .setResponseCache(new LruResponseCache(64 * 1024 * 1024));
+ */
+public class LruResponseCache implements ResponseCache {
+
+    long maxBytes;
+    File diskDirectory;
+
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a cache held only in memory.
+     * @param maxBytes - the most response data to hold in memory
+     */
+    public LruResponseCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Create a cache held in memory and on disk.
+     * @param maxBytes - the most response data to hold in memory
+     * @param diskDirectory - directory to write responses to, created if necessary
+     */
+    public LruResponseCache(long maxBytes, File diskDirectory) {
+        this.maxBytes = maxBytes;
+        this.diskDirectory = diskDirectory;
+        if (diskDirectory != null && !diskDirectory.isDirectory() && !diskDirectory.mkdirs()) {
+            throw new LookbackException("Unable to create cache directory " + diskDirectory);
+        }
+    }
+
+    public synchronized byte[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null && diskDirectory != null) {
+            entry = readFromDisk(key);
+            if (entry != null) {
+                addToMemory(key, entry);
+            }
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.body;
+    }
+
+    public synchronized void put(String key, byte[] body, String etlDate) {
+        Entry entry = new Entry(body, etlDate);
+        Entry replaced = entries.remove(key);
+        if (replaced != null) {
+            bytes -= replaced.body.length;
+        }
+        addToMemory(key, entry);
+        if (diskDirectory != null) {
+            writeToDisk(key, entry);
+        }
+    }
+
+    public synchronized void invalidateOlderThan(String etlDate) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (isOlder(entry.etlDate, etlDate)) {
+                bytes -= entry.body.length;
+                iterator.remove();
+            }
+        }
+
+        if (diskDirectory != null) {
+            File[] files = diskDirectory.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                if (isOlder(readEtlDate(file), etlDate)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return long - the number of lookups answered from memory or disk
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return long - the number of lookups that found nothing
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return long - the number of responses evicted from memory to stay within maxBytes
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return long - the size of the responses currently held in memory
+     */
+    public synchronized long getSizeInBytes() {
+        return bytes;
+    }
+
+    private void addToMemory(String key, Entry entry) {
+        if (entry.body.length > maxBytes) {
+            return;
+        }
+        entries.put(key, entry);
+        bytes += entry.body.length;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().body.length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static boolean isOlder(String etlDate, String latestEtlDate) {
+        return etlDate == null || (latestEtlDate != null && etlDate.compareTo(latestEtlDate) < 0);
+    }
+
+    private File getFile(String key) {
+        return new File(diskDirectory, DigestUtils.shaHex(key) + ".json");
+    }
+
+    private Entry readFromDisk(String key) {
+        return readFile(getFile(key));
+    }
+
+    private Entry readFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                String etlDate = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                return new Entry(body, etlDate);
+            } finally {
+                in.close();
+            }
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    private String readEtlDate(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readUTF();
+            } finally {
+                in.close();
+            }
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        File file = getFile(key);
+        File temporary = new File(diskDirectory, file.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeUTF(entry.etlDate == null ? "" : entry.etlDate);
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                file.delete();
+                temporary.renameTo(file);
+            }
+        } catch (IOException exception) {
+            temporary.delete();
+        }
+    }
+
+    private static class Entry {
+
+        byte[] body;
+        String etlDate;
+
+        Entry(byte[] body, String etlDate) {
+            this.body = body;
+            this.etlDate = etlDate;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.rallydev.lookback;
+
+/**
+ * Controls how numbers in snapshots are decoded, see LookbackApi's setNumberPolicy method.
+ */
+public enum NumberPolicy {
+
+    /**
+     * Every number is decoded as a Double, matching Gson's default behavior. Integers beyond
+     * 2^53, which includes some Rally OIDs, lose precision.
+     */
+    DOUBLE {
+        Object decode(String number) {
+            return Double.parseDouble(number);
+        }
+    },
+
+    /**
+     * Integral numbers are decoded exactly as Longs, only numbers with a fraction or
+     * exponent are decoded as Doubles.
+     */
+    LONG_OR_DOUBLE {
+        Object decode(String number) {
+            if (isIntegral(number)) {
+                return Long.parseLong(number);
+            }
+            return Double.parseDouble(number);
+        }
+    };
+
+    abstract Object decode(String number);
+
+    /**
+     * Write a decoded Double back as a JSON number literal that decodes to the same value
+     * under either policy. Integral values keep a fraction, so LONG_OR_DOUBLE reads them back
+     * as Doubles rather than Longs, and are written in full rather than in exponent form.
+     */
+    static String encode(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e18) {
+            return (long) number + ".0";
+        }
+        return Double.toString(number);
+    }
+
+    /**
+     * Checks whether a JSON number literal can be held exactly by a long.
+     */
+    static boolean isIntegral(String number) {
+        int length = number.length();
+        for (int i = 0; i < length; i++) {
+            char c = number.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                return false;
+            }
+        }
+        return length < 19 || fitsInLong(number);
+    }
+
+    private static boolean fitsInLong(String number) {
+        try {
+            Long.parseLong(number);
+            return true;
+        } catch (NumberFormatException exception) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches every page of a query. The first page is fetched on the calling thread to learn
+ * TotalResultCount, after which the remaining pages are spread across a fixed number of
+ * workers. The calling thread is one of the workers and the rest run on the LookbackApi's
+ * executor, so fetchAll still completes when every executor thread is busy, such as when it
+ * is called from a task on a small executor. Workers that hadn't started by the time the
+ * calling thread ran out of pages are cancelled rather than waited on.
+ */
+class PageFetcher {
+
+    LookbackApi api;
+    int parallelism;
+    boolean preserveOrder;
+
+    PageFetcher(LookbackApi api, int parallelism, boolean preserveOrder) {
+        if (parallelism < 1) {
+            throw new LookbackException("Parallelism must be at least 1");
+        }
+        this.api = api;
+        this.parallelism = parallelism;
+        this.preserveOrder = preserveOrder;
+    }
+
+    List<LookbackResult> fetchAll(LookbackQuery firstQuery) {
+        LookbackResult firstPage = firstQuery.execute();
+        List<LookbackQuery> remainingQueries = getRemainingQueries(firstQuery, firstPage);
+
+        LookbackResult[] pages = new LookbackResult[remainingQueries.size() + 1];
+        List<LookbackResult> completed = Collections.synchronizedList(new ArrayList<LookbackResult>(pages.length));
+        pages[0] = firstPage;
+        completed.add(firstPage);
+
+        runWorkers(remainingQueries, pages, completed);
+
+        return preserveOrder ? Arrays.asList(pages) : completed;
+    }
+
+    private List<LookbackQuery> getRemainingQueries(LookbackQuery firstQuery, LookbackResult firstPage) {
+        List<LookbackQuery> queries = new ArrayList<LookbackQuery>();
+        int firstPagesize = firstQuery.pagesize;
+        if (firstQuery.pageSizer != null && firstPage.PageSize > 0) {
+            firstPagesize = Math.min(firstPagesize, firstPage.PageSize);
+        }
+
+        LookbackQuery template = firstQuery;
+        if (firstQuery.pageSizer != null) {
+            template = firstQuery.copyAtStart(firstPage.StartIndex);
+            template.resizeAfter(firstPage);
+        }
+        int pagesize = template.pagesize;
+        for (int start = firstPage.StartIndex + firstPagesize; start < firstPage.TotalResultCount; start += pagesize) {
+            queries.add(template.copyAtStart(start));
+        }
+        return queries;
+    }
+
+    private void runWorkers(List<LookbackQuery> queries, LookbackResult[] pages, List<LookbackResult> completed) {
+        ExecutorService executor = api.getExecutor();
+        AtomicInteger nextPage = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+
+        List<Worker> workers = new ArrayList<Worker>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 1; i < Math.min(parallelism, queries.size()); i++) {
+            Worker worker = new Worker(queries, pages, completed, nextPage, failed);
+            workers.add(worker);
+            futures.add(executor.submit(worker));
+        }
+
+        try {
+            new Worker(queries, pages, completed, nextPage, failed).call();
+        } catch (RuntimeException exception) {
+            cancelAll(futures);
+            throw exception;
+        }
+
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                if (workers.get(i).started) {
+                    futures.get(i).get();
+                } else {
+                    futures.get(i).cancel(false);
+                }
+            }
+        } catch (InterruptedException exception) {
+            failed.set(true);
+            Thread.currentThread().interrupt();
+            throw new LookbackException(exception);
+        } catch (ExecutionException exception) {
+            failed.set(true);
+            throw unwrap(exception);
+        }
+    }
+
+    private static void cancelAll(List<Future<Void>> futures) {
+        for (Future<Void> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    static LookbackException unwrap(ExecutionException exception) {
+        Throwable cause = exception.getCause();
+        if (cause instanceof LookbackException) {
+            return (LookbackException) cause;
+        }
+        return new LookbackException(cause);
+    }
+
+    private static class Worker implements Callable<Void> {
+
+        List<LookbackQuery> queries;
+        LookbackResult[] pages;
+        List<LookbackResult> completed;
+        AtomicInteger nextPage;
+        AtomicBoolean failed;
+        volatile boolean started;
+
+        Worker(List<LookbackQuery> queries, LookbackResult[] pages, List<LookbackResult> completed,
+               AtomicInteger nextPage, AtomicBoolean failed) {
+            this.queries = queries;
+            this.pages = pages;
+            this.completed = completed;
+            this.nextPage = nextPage;
+            this.failed = failed;
+        }
+
+        /**
+         * A worker marks itself started before claiming a page. One that starts after the
+         * calling thread's worker has run out of pages finds none left to claim.
+         */
+        public Void call() {
+            started = true;
+            int index;
+            while (!failed.get() && (index = nextPage.getAndIncrement()) < queries.size()) {
+                try {
+                    LookbackResult page = queries.get(index).execute();
+                    pages[index + 1] = page;
+                    completed.add(page);
+                } catch (RuntimeException exception) {
+                    failed.set(true);
+                    throw exception;
+                }
+            }
+            return null;
+        }
+    }
+}
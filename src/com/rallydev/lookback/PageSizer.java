@@ -0,0 +1,110 @@
+package com.rallydev.lookback;
+
+import java.util.List;
+
+/**
+ * Chooses the pagesize of each following page of an adaptively paged query, see
+ * LookbackQuery's useAdaptivePagesize method. Each page's response time and decoded size
+ * are folded into running per snapshot estimates, and the next page is sized to meet the
+ * target latency and byte budget. Fixed per request costs make small pages look slow per
+ * snapshot, so sizing is conservative at first and settles on the target as pages grow.
+ * Growth is at most double per page, shrinking is immediate. A page the server returned
+ * short of the requested pagesize, or warned about pagesize, caps all following pages.
+ * Instances are immutable, each page carries the sizer for the page after it.
+ */
+final class PageSizer {
+
+    private static final double SMOOTHING = 0.5;
+    private static final int MAX_GROWTH = 2;
+
+    final long targetNanos;
+    final long maxBytes;
+    final int minPagesize;
+    final int maxPagesize;
+
+    private final double nanosPerSnapshot;
+    private final double bytesPerSnapshot;
+
+    PageSizer(long targetNanos, long maxBytes, int minPagesize, int maxPagesize) {
+        this(targetNanos, maxBytes, minPagesize, maxPagesize, 0, 0);
+    }
+
+    private PageSizer(long targetNanos, long maxBytes, int minPagesize, int maxPagesize,
+                      double nanosPerSnapshot, double bytesPerSnapshot) {
+        this.targetNanos = targetNanos;
+        this.maxBytes = maxBytes;
+        this.minPagesize = minPagesize;
+        this.maxPagesize = maxPagesize;
+        this.nanosPerSnapshot = nanosPerSnapshot;
+        this.bytesPerSnapshot = bytesPerSnapshot;
+    }
+
+    /**
+     * Fold a page into the estimates.
+     * @param page - the page just fetched
+     * @param requested - the pagesize it was requested with
+     * @return the sizer for the next page
+     */
+    PageSizer observe(LookbackResult page, int requested) {
+        int snapshots = countSnapshots(page);
+        int ceiling = maxPagesize;
+        if (isLimitedByServer(page, requested)) {
+            ceiling = Math.max(minPagesize, Math.min(maxPagesize, page.PageSize > 0 ? page.PageSize : snapshots));
+        }
+        if (snapshots == 0) {
+            return new PageSizer(targetNanos, maxBytes, minPagesize, ceiling, nanosPerSnapshot, bytesPerSnapshot);
+        }
+
+        double nanos = nanosPerSnapshot;
+        if (page.responseNanos > 0) {
+            nanos = smooth(nanosPerSnapshot, (double) page.responseNanos / snapshots);
+        }
+        double bytes = bytesPerSnapshot;
+        if (page.uncompressedBytes > 0) {
+            bytes = smooth(bytesPerSnapshot, (double) page.uncompressedBytes / snapshots);
+        }
+        return new PageSizer(targetNanos, maxBytes, minPagesize, ceiling, nanos, bytes);
+    }
+
+    /**
+     * @param previous - the pagesize of the page just fetched
+     * @return int - the pagesize for the next page
+     */
+    int nextPagesize(int previous) {
+        double pagesize = (double) previous * MAX_GROWTH;
+        if (targetNanos > 0 && nanosPerSnapshot > 0) {
+            pagesize = Math.min(pagesize, targetNanos / nanosPerSnapshot);
+        }
+        if (maxBytes > 0 && bytesPerSnapshot > 0) {
+            pagesize = Math.min(pagesize, maxBytes / bytesPerSnapshot);
+        }
+        return (int) Math.max(minPagesize, Math.min(maxPagesize, pagesize));
+    }
+
+    private static double smooth(double estimate, double observed) {
+        return estimate == 0 ? observed : estimate + SMOOTHING * (observed - estimate);
+    }
+
+    private static int countSnapshots(LookbackResult page) {
+        if (page.Columns != null) {
+            return page.Columns.size();
+        }
+        return page.Results == null ? 0 : page.Results.size();
+    }
+
+    private static boolean isLimitedByServer(LookbackResult page, int requested) {
+        if (page.PageSize > 0 && page.PageSize < requested) {
+            return true;
+        }
+        List<String> warnings = page.Warnings;
+        if (warnings != null) {
+            for (String warning : warnings) {
+                String lower = warning == null ? "" : warning.toLowerCase();
+                if (lower.contains("pagesize") || lower.contains("page size")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
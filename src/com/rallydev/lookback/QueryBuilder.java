@@ -3,15 +3,19 @@ package com.rallydev.lookback;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 class QueryBuilder {
 
+    private static final Gson serializer = new GsonBuilder()
+            .serializeNulls()
+            .create();
+
     Map<String, Object> query;
 
     QueryBuilder() {
-        query = new HashMap<String, Object>();
+        query = new TreeMap<String, Object>();
     }
 
     void addField(String field, Object value) {
@@ -26,14 +30,11 @@ class QueryBuilder {
         }
     }
 
-    String getQueryJson() {
-        return getSerializer()
-                .toJson(query);
+    boolean hasField(String field) {
+        return query.containsKey(field);
     }
 
-    private Gson getSerializer() {
-        return new GsonBuilder()
-                .serializeNulls()
-                .create();
+    String getQueryJson() {
+        return serializer.toJson(query);
     }
 }
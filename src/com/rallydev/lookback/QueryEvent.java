@@ -0,0 +1,168 @@
+package com.rallydev.lookback;
+
+import java.util.Map;
+
+/**
+ * Timings and sizes of a single request to the Lookback API, delivered to QueryListeners.
+ * The client side phases are:
+ *
+ *      connect      - leasing a pooled connection, and opening it if necessary
+ *      first byte   - sending the request until the response headers arrive
+ *      transfer     - time spent waiting on the network while reading the body
+ *      decode       - time spent decompressing and decoding the body
+ *
+ * The server's own Timings and ThreadStats are included for comparison. Requests answered
+ * from a ResponseCache, or shared with an identical query in flight, have no network phases.
+ */
+public class QueryEvent {
+
+    LookbackQuery query;
+    boolean isCached;
+    boolean isCoalesced;
+    boolean isAborted;
+    long beginNanos;
+    int retryCount;
+    long connectNanos;
+    long firstByteNanos;
+    long transferNanos;
+    long decodeNanos;
+    long totalNanos;
+    long compressedBytes;
+    long uncompressedBytes;
+    int snapshotCount;
+    Map<String, Integer> serverTimings;
+    Map<String, String> threadStats;
+
+    QueryEvent(LookbackQuery query) {
+        this.query = query;
+        this.beginNanos = System.nanoTime();
+    }
+
+    /**
+     * @return LookbackQuery - the query that was executed
+     */
+    public LookbackQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * @return boolean - true if the response came from the ResponseCache
+     */
+    public boolean isCached() {
+        return isCached;
+    }
+
+    /**
+     * @return boolean - true if the response was shared with an identical query already
+     * in flight, see LookbackApi's setRequestCoalescing method
+     */
+    public boolean isCoalesced() {
+        return isCoalesced;
+    }
+
+    /**
+     * @return boolean - true if a SnapshotStream was closed before it was read to the end,
+     * the counts and sizes are of what had been read
+     */
+    public boolean isAborted() {
+        return isAborted;
+    }
+
+    /**
+     * @return int - the number of times the request was retried before it succeeded or failed
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return long - nanoseconds to lease or open a connection
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return long - nanoseconds from sending the request to receiving the response headers
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * @return long - nanoseconds spent waiting on the network for the response body
+     */
+    public long getTransferNanos() {
+        return transferNanos;
+    }
+
+    /**
+     * @return long - nanoseconds spent decompressing and decoding the response body
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * @return long - nanoseconds from starting the query to finishing it
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return long - response bytes read from the network
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return long - response bytes after decompression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * @return int - the number of snapshots returned
+     */
+    public int getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * @return Map - the Timings reported by the server, or null
+     */
+    public Map<String, Integer> getServerTimings() {
+        return serverTimings;
+    }
+
+    /**
+     * @return Map - the ThreadStats reported by the server, or null
+     */
+    public Map<String, String> getThreadStats() {
+        return threadStats;
+    }
+
+    /**
+     * Record the end of a successful request. Streams count their own snapshots as they
+     * are read, pages are counted here.
+     */
+    void recordResult(LookbackResult result) {
+        totalNanos = System.nanoTime() - beginNanos;
+        if (snapshotCount == 0 && result.Results != null) {
+            snapshotCount = result.Results.size();
+        } else if (snapshotCount == 0 && result.Columns != null) {
+            snapshotCount = result.Columns.size();
+        }
+        compressedBytes = result.compressedBytes;
+        uncompressedBytes = result.uncompressedBytes;
+        serverTimings = result.Timings;
+        threadStats = result.ThreadStats;
+    }
+
+    void recordFailure() {
+        totalNanos = System.nanoTime() - beginNanos;
+    }
+}
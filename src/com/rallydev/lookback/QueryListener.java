@@ -0,0 +1,23 @@
+package com.rallydev.lookback;
+
+/**
+ * Receives an event for every request a LookbackApi makes, see LookbackApi's
+ * addQueryListener method. Listeners are called on the thread that ran the query and
+ * should return quickly. QueryMetrics is a listener that keeps latency histograms.
+ */
+public interface QueryListener {
+
+    /**
+     * Called once a response has been decoded, or for a SnapshotStream, once it has been
+     * read to the end or closed, see QueryEvent's isAborted method.
+     * @param event - timings and sizes of the request
+     */
+    void queryCompleted(QueryEvent event);
+
+    /**
+     * Called when a request fails, the failure is still thrown to the caller.
+     * @param event - timings of the request up to the failure
+     * @param failure - the exception thrown
+     */
+    void queryFailed(QueryEvent event, Exception failure);
+}
@@ -0,0 +1,240 @@
+package com.rallydev.lookback;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryMetrics objects are QueryListeners that keep latency histograms for each phase of
+ * a request, along with counts of queries, failures, retries, cache hits, coalesced queries,
+ * snapshots and bytes:
+ *
+ *      QueryMetrics metrics = new QueryMetrics();
+ *      LookbackApi api = new LookbackApi().addQueryListener(metrics);
+ *      ...
+ *      double slowest = metrics.getTotalTimes().getPercentileMillis(99);
+ *
+ * Register the metrics with the platform MBeanServer to watch them from JMX consoles, or
+ * from any metrics library that reads JMX:
+ *
+ *      metrics.registerMBean("reporting");
+ */
+public class QueryMetrics implements QueryListener, QueryMetricsMXBean {
+
+    private volatile LatencyHistogram connectTimes = new LatencyHistogram();
+    private volatile LatencyHistogram firstByteTimes = new LatencyHistogram();
+    private volatile LatencyHistogram transferTimes = new LatencyHistogram();
+    private volatile LatencyHistogram decodeTimes = new LatencyHistogram();
+    private volatile LatencyHistogram totalTimes = new LatencyHistogram();
+    private volatile LatencyHistogram serverTimes = new LatencyHistogram();
+
+    private AtomicLong queries = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+    private AtomicLong cacheHits = new AtomicLong();
+    private AtomicLong retries = new AtomicLong();
+    private AtomicLong coalesced = new AtomicLong();
+    private AtomicLong snapshots = new AtomicLong();
+    private AtomicLong compressedBytes = new AtomicLong();
+    private AtomicLong uncompressedBytes = new AtomicLong();
+
+    public void queryCompleted(QueryEvent event) {
+        queries.incrementAndGet();
+        retries.addAndGet(event.getRetryCount());
+        snapshots.addAndGet(event.getSnapshotCount());
+        uncompressedBytes.addAndGet(event.getUncompressedBytes());
+        totalTimes.record(event.getTotalNanos());
+        decodeTimes.record(event.getDecodeNanos());
+        if (event.isCached()) {
+            cacheHits.incrementAndGet();
+            return;
+        }
+        if (event.isCoalesced()) {
+            coalesced.incrementAndGet();
+            return;
+        }
+
+        compressedBytes.addAndGet(event.getCompressedBytes());
+        connectTimes.record(event.getConnectNanos());
+        firstByteTimes.record(event.getFirstByteNanos());
+        transferTimes.record(event.getTransferNanos());
+        Integer serverMillis = getServerMillis(event.getServerTimings());
+        if (serverMillis != null) {
+            serverTimes.record(serverMillis * 1000000L);
+        }
+    }
+
+    public void queryFailed(QueryEvent event, Exception failure) {
+        failures.incrementAndGet();
+        retries.addAndGet(event.getRetryCount());
+    }
+
+    /**
+     * Register these metrics with the platform MBeanServer.
+     * @param name - distinguishes these metrics from those of other LookbackApis
+     * @return ObjectName - the name registered, com.rallydev.lookback:type=QueryMetrics,name=[name]
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.rallydev.lookback:type=QueryMetrics,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
+    /**
+     * @return LatencyHistogram - time to lease or open a connection
+     */
+    public LatencyHistogram getConnectTimes() {
+        return connectTimes;
+    }
+
+    /**
+     * @return LatencyHistogram - time from sending a request to receiving the response headers
+     */
+    public LatencyHistogram getFirstByteTimes() {
+        return firstByteTimes;
+    }
+
+    /**
+     * @return LatencyHistogram - time spent waiting on the network for response bodies
+     */
+    public LatencyHistogram getTransferTimes() {
+        return transferTimes;
+    }
+
+    /**
+     * @return LatencyHistogram - time spent decompressing and decoding response bodies
+     */
+    public LatencyHistogram getDecodeTimes() {
+        return decodeTimes;
+    }
+
+    /**
+     * @return LatencyHistogram - time from starting each query to finishing it
+     */
+    public LatencyHistogram getTotalTimes() {
+        return totalTimes;
+    }
+
+    /**
+     * @return LatencyHistogram - the total time the server reported in each response's Timings
+     */
+    public LatencyHistogram getServerTimes() {
+        return serverTimes;
+    }
+
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public double getMeanMillis() {
+        return totalTimes.getMeanMillis();
+    }
+
+    public double getMedianMillis() {
+        return totalTimes.getPercentileMillis(50);
+    }
+
+    public double get95thPercentileMillis() {
+        return totalTimes.getPercentileMillis(95);
+    }
+
+    public double get99thPercentileMillis() {
+        return totalTimes.getPercentileMillis(99);
+    }
+
+    public double getMaxMillis() {
+        return totalTimes.getMaxMillis();
+    }
+
+    public double getConnect99thPercentileMillis() {
+        return connectTimes.getPercentileMillis(99);
+    }
+
+    public double getFirstByte99thPercentileMillis() {
+        return firstByteTimes.getPercentileMillis(99);
+    }
+
+    public double getTransfer99thPercentileMillis() {
+        return transferTimes.getPercentileMillis(99);
+    }
+
+    public double getDecode99thPercentileMillis() {
+        return decodeTimes.getPercentileMillis(99);
+    }
+
+    public double getServer99thPercentileMillis() {
+        return serverTimes.getPercentileMillis(99);
+    }
+
+    public void reset() {
+        connectTimes = new LatencyHistogram();
+        firstByteTimes = new LatencyHistogram();
+        transferTimes = new LatencyHistogram();
+        decodeTimes = new LatencyHistogram();
+        totalTimes = new LatencyHistogram();
+        serverTimes = new LatencyHistogram();
+        queries.set(0);
+        failures.set(0);
+        cacheHits.set(0);
+        retries.set(0);
+        coalesced.set(0);
+        snapshots.set(0);
+        compressedBytes.set(0);
+        uncompressedBytes.set(0);
+    }
+
+    /**
+     * The server reports a breakdown of its time, use its total if given, otherwise the sum.
+     */
+    private static Integer getServerMillis(Map<String, Integer> timings) {
+        if (timings == null || timings.isEmpty()) {
+            return null;
+        }
+        if (timings.get("total") != null) {
+            return timings.get("total");
+        }
+        int sum = 0;
+        for (Integer millis : timings.values()) {
+            sum += millis == null ? 0 : millis;
+        }
+        return sum;
+    }
+}
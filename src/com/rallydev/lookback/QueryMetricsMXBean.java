@@ -0,0 +1,49 @@
+package com.rallydev.lookback;
+
+/**
+ * The management interface QueryMetrics is exposed through once registered with JMX, see
+ * QueryMetrics' registerMBean method. Durations are in milliseconds.
+ */
+public interface QueryMetricsMXBean {
+
+    long getQueryCount();
+
+    long getFailureCount();
+
+    long getCacheHitCount();
+
+    long getRetryCount();
+
+    long getCoalescedCount();
+
+    long getSnapshotCount();
+
+    long getCompressedBytes();
+
+    long getUncompressedBytes();
+
+    double getMeanMillis();
+
+    double getMedianMillis();
+
+    double get95thPercentileMillis();
+
+    double get99thPercentileMillis();
+
+    double getMaxMillis();
+
+    double getConnect99thPercentileMillis();
+
+    double getFirstByte99thPercentileMillis();
+
+    double getTransfer99thPercentileMillis();
+
+    double getDecode99thPercentileMillis();
+
+    double getServer99thPercentileMillis();
+
+    /**
+     * Clear all counters and histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,141 @@
+package com.rallydev.lookback;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Paces and retries the requests of a LookbackApi. Every attempt first takes a permit from
+ * a token bucket shared by all of the LookbackApi's queries, if a rate limit has been set.
+ * Throttled and unavailable responses, and failed connections, are retried after an
+ * exponentially growing delay with full jitter, or after the delay the server asked for
+ * in Retry-After. A server asking for a delay holds back every query, not only the one
+ * that was throttled, so parallel fetches don't pile more requests onto a busy server.
+ */
+class RequestThrottle {
+
+    volatile int maxRetries = 3;
+    volatile long initialBackoffMillis = 500;
+    volatile long maxBackoffMillis = 30000;
+
+    private volatile RateLimiter rateLimiter;
+    private volatile long pausedUntil;
+    private final Random random = new Random();
+
+    synchronized void setRateLimit(double requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            rateLimiter = null;
+        } else if (rateLimiter == null) {
+            rateLimiter = RateLimiter.create(requestsPerSecond);
+        } else {
+            rateLimiter.setRate(requestsPerSecond);
+        }
+    }
+
+    /**
+     * Wait until a request may be sent.
+     */
+    void acquire() throws InterruptedIOException {
+        long pause = pausedUntil - System.currentTimeMillis();
+        if (pause > 0) {
+            sleep(pause);
+        }
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire();
+        }
+    }
+
+    static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * Failed connections are retried, other than unknown hosts, SSL failures and interrupted
+     * or timed out I/O, which HttpClient reports as an InterruptedIOException.
+     */
+    boolean isRetryable(IOException exception, int attempt) {
+        return mayRetry(attempt)
+                && !(exception instanceof InterruptedIOException)
+                && !(exception instanceof UnknownHostException)
+                && !(exception instanceof SSLException);
+    }
+
+    boolean isRetryable(HttpResponse response, int attempt) {
+        return mayRetry(attempt) && isRetryable(response.getStatusLine().getStatusCode());
+    }
+
+    /**
+     * A thread that has been interrupted is giving up, so it isn't made to wait and retry.
+     */
+    private boolean mayRetry(int attempt) {
+        return attempt < maxRetries && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Wait before retrying. A Retry-After on the response is honoured, up to the maximum
+     * backoff, and holds back every other request in the meantime.
+     * @param attempt - the attempt that failed, counting from 0
+     * @param response - the throttled response, or null if the request failed outright
+     */
+    void backOff(int attempt, HttpResponse response) throws InterruptedIOException {
+        long retryAfter = response == null ? -1 : parseRetryAfter(response.getFirstHeader("Retry-After"));
+        long delay;
+        if (retryAfter >= 0) {
+            delay = Math.min(retryAfter, maxBackoffMillis);
+            pauseAll(delay);
+        } else {
+            long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 30));
+            synchronized (random) {
+                delay = (long) (random.nextDouble() * ceiling);
+            }
+        }
+        sleep(delay);
+    }
+
+    private void pauseAll(long delay) {
+        long until = System.currentTimeMillis() + delay;
+        synchronized (this) {
+            if (until > pausedUntil) {
+                pausedUntil = until;
+            }
+        }
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date.
+     * @return the delay asked for in milliseconds, or -1 if there isn't one
+     */
+    static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException notSeconds) {
+            try {
+                return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+            } catch (DateParseException notDate) {
+                return -1;
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
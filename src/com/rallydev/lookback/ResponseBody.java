@@ -0,0 +1,130 @@
+package com.rallydev.lookback;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The content of a response, decompressed as it is read according to its Content-Encoding.
+ * The bytes read off the wire and the bytes after decompression are both counted, and the
+ * time spent blocked reading from the wire is kept apart from the time spent decoding.
+ */
+class ResponseBody {
+
+    private long openedNanos = System.nanoTime();
+    private TimedInputStream wire;
+    private CountingInputStream transferred;
+    private CountingInputStream content;
+
+    ResponseBody(HttpEntity entity) throws IOException {
+        wire = new TimedInputStream(entity.getContent());
+        transferred = new CountingInputStream(wire);
+        Header encoding = entity.getContentEncoding();
+        String name = encoding == null ? "identity" : encoding.getValue().trim().toLowerCase();
+
+        InputStream decoded;
+        if ("gzip".equals(name) || "x-gzip".equals(name)) {
+            decoded = new GZIPInputStream(transferred, 8192);
+        } else if ("deflate".equals(name)) {
+            decoded = inflate(transferred);
+        } else if ("identity".equals(name) || name.length() == 0) {
+            decoded = transferred;
+        } else {
+            transferred.close();
+            throw new LookbackException("Unsupported Content-Encoding " + name);
+        }
+        content = new CountingInputStream(decoded);
+    }
+
+    InputStream getContent() {
+        return content;
+    }
+
+    /**
+     * Record the bytes read so far on a result.
+     */
+    void recordSizes(LookbackResult result) {
+        result.compressedBytes = transferred.getCount();
+        result.uncompressedBytes = content.getCount();
+    }
+
+    /**
+     * Split the time since the body was opened between transfer and decoding.
+     */
+    void recordTimings(QueryEvent event) {
+        long elapsed = System.nanoTime() - openedNanos;
+        event.transferNanos = wire.readNanos;
+        event.decodeNanos = Math.max(0, elapsed - wire.readNanos);
+    }
+
+    /**
+     * Servers disagree on whether deflate means zlib wrapped or raw deflate data, so check
+     * for a zlib header before choosing.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream peekable = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int read = 0;
+        while (read < 2) {
+            int count = peekable.read(header, read, 2 - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        peekable.unread(header, 0, read);
+
+        boolean zlib = read == 2 && (header[0] & 0x0f) == 8 && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(peekable, new Inflater(!zlib), 8192);
+    }
+
+    /**
+     * Accumulates the time spent inside reads of the underlying stream.
+     */
+    private static class TimedInputStream extends FilterInputStream {
+
+        long readNanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                readNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read(buffer, offset, length);
+            } finally {
+                readNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.skip(count);
+            } finally {
+                readNanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
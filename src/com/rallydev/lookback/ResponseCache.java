@@ -0,0 +1,29 @@
+package com.rallydev.lookback;
+
+/**
+ * A cache of raw Lookback API responses, see LookbackApi's setResponseCache method.
+ * Responses are keyed on the workspace, user and request JSON of the query that produced
+ * them, and remember the ETLDate they were produced at so they can be dropped once the
+ * Lookback API has loaded newer data. Implementations must be safe for use from multiple threads.
+ */
+public interface ResponseCache {
+
+    /**
+     * @param key - identifies the query
+     * @return byte[] - the cached response body, or null if there isn't one
+     */
+    byte[] get(String key);
+
+    /**
+     * @param key - identifies the query
+     * @param body - the response body
+     * @param etlDate - the ETLDate reported by the response
+     */
+    void put(String key, byte[] body, String etlDate);
+
+    /**
+     * Drop every response produced before etlDate.
+     * @param etlDate - the most recent ETLDate reported by the Lookback API
+     */
+    void invalidateOlderThan(String etlDate);
+}
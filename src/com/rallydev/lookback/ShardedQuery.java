@@ -0,0 +1,211 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * ShardedQuery objects split one LookbackQuery into several independent queries over
+ * non-overlapping ranges of _ValidFrom or ObjectID, so a large history can be extracted by
+ * paging through every range at once. Obtain one from LookbackQuery's shardByValidFrom or
+ * shardByObjectId methods:
+ *
+ *      SnapshotIterator snapshots = query.shardByValidFrom(8).iterateAll();
+ *
+ * Shard boundaries are chosen with count probes, small queries that only read
+ * TotalResultCount, so that each shard holds roughly the same number of snapshots.
+ */
+public class ShardedQuery {
+
+    static final int MAX_PROBES_PER_BOUNDARY = 24;
+    static final double BOUNDARY_TOLERANCE = 0.1;
+
+    LookbackApi api;
+    LookbackQuery baseQuery;
+    String field;
+    boolean isTimestamp;
+    int shardCount;
+
+    private List<LookbackQuery> shards;
+
+    ShardedQuery(LookbackApi api, LookbackQuery baseQuery, String field, boolean isTimestamp, int shardCount) {
+        if (shardCount < 1) {
+            throw new LookbackException("Shard count must be at least 1");
+        }
+        this.api = api;
+        this.baseQuery = baseQuery;
+        this.field = field;
+        this.isTimestamp = isTimestamp;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Get the queries for each shard, probing the server to plan them on the first call.
+     * Each shard can be executed and paged through on its own.
+     * @return List - one query per shard, ordered by range
+     */
+    public synchronized List<LookbackQuery> getShardQueries() {
+        if (shards == null) {
+            shards = planShards();
+        }
+        return shards;
+    }
+
+    /**
+     * Page through every shard concurrently and merge their snapshots into one iterator.
+     * Snapshots are returned a page at a time in the order pages arrive, not in sort order.
+     * @return SnapshotIterator - an iterator across all pages of all shards.
+     */
+    public SnapshotIterator iterateAll() {
+        return iterateAll(getShardQueries().size());
+    }
+
+    /**
+     * Page through every shard concurrently, with up to readAhead fetched pages waiting.
+     * @param readAhead - maximum number of fetched pages waiting to be iterated
+     * @return SnapshotIterator - an iterator across all pages of all shards.
+     */
+    public SnapshotIterator iterateAll(int readAhead) {
+        return new SnapshotIterator(api, getShardQueries(), readAhead);
+    }
+
+    private List<LookbackQuery> planShards() {
+        LookbackResult first = newProbe(null, 1).execute();
+        int total = first.TotalResultCount;
+        if (shardCount == 1 || total <= shardCount) {
+            return Collections.singletonList(baseQuery.copyAtStart(baseQuery.start));
+        }
+
+        long lowest = readKey(first);
+        long highest = readKey(newProbe(null, -1).execute());
+        List<Long> boundaries = findBoundaries(lowest, highest + 1, total);
+
+        List<LookbackQuery> queries = new ArrayList<LookbackQuery>();
+        Long lower = null;
+        for (Long upper : boundaries) {
+            queries.add(newShard(lower, upper));
+            lower = upper;
+        }
+        queries.add(newShard(lower, null));
+        return queries;
+    }
+
+    /**
+     * Search for the key below which k/shardCount of the snapshots fall, for every k,
+     * with the searches for each boundary running concurrently.
+     */
+    private List<Long> findBoundaries(long lowest, long highest, int total) {
+        ExecutorService executor = api.getExecutor();
+        List<Future<Long>> searches = new ArrayList<Future<Long>>();
+        for (int k = 1; k < shardCount; k++) {
+            searches.add(executor.submit(new BoundarySearch(lowest, highest, (long) total * k / shardCount, total)));
+        }
+
+        SortedSet<Long> boundaries = new TreeSet<Long>();
+        try {
+            for (Future<Long> search : searches) {
+                long boundary = search.get();
+                if (boundary > lowest && boundary < highest) {
+                    boundaries.add(boundary);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new LookbackException(exception);
+        } catch (ExecutionException exception) {
+            throw PageFetcher.unwrap(exception);
+        }
+        return new ArrayList<Long>(boundaries);
+    }
+
+    private int countBelow(long key) {
+        return newProbe(FindClauses.compare(field, "$lt", toJsonValue(key)), 1).execute().TotalResultCount;
+    }
+
+    private LookbackQuery newProbe(Map<String, Object> clause, int direction) {
+        LookbackQuery probe = baseQuery.copyAtStart(0);
+        if (clause != null) {
+            probe.find = FindClauses.and(probe.find, clause);
+        }
+        probe.pagesize = 1;
+        probe.isColumnar = false;
+        probe.isKeyset = false;
+        probe.isFieldsTrue = false;
+        probe.fields = null;
+        probe.requireFields(field);
+        probe.sort = null;
+        probe.sortBy(field, direction);
+        return probe;
+    }
+
+    private LookbackQuery newShard(Long lower, Long upper) {
+        Map<String, Object> range = new HashMap<String, Object>();
+        if (lower != null) {
+            range.put("$gte", toJsonValue(lower));
+        }
+        if (upper != null) {
+            range.put("$lt", toJsonValue(upper));
+        }
+
+        LookbackQuery shard = baseQuery.copyAtStart(0);
+        if (!range.isEmpty()) {
+            shard.find = FindClauses.and(shard.find, Collections.<String, Object>singletonMap(field, range));
+        }
+        return shard;
+    }
+
+    private long readKey(LookbackResult probe) {
+        if (probe.Results.isEmpty()) {
+            throw new LookbackException("Unable to read " + field + " to plan shards");
+        }
+        Object value = probe.Results.get(0).get(field);
+        if (isTimestamp) {
+            long millis = value == null ? Long.MIN_VALUE : IsoDates.parse(value.toString());
+            if (millis == Long.MIN_VALUE) {
+                throw new LookbackException("Unable to read " + field + " to plan shards");
+            }
+            return millis;
+        }
+        if (!(value instanceof Number)) {
+            throw new LookbackException("Unable to read " + field + " to plan shards");
+        }
+        return ((Number) value).longValue();
+    }
+
+    private Object toJsonValue(long key) {
+        return isTimestamp ? IsoDates.format(key) : (Object) key;
+    }
+
+    private class BoundarySearch implements Callable<Long> {
+
+        long low;
+        long high;
+        long target;
+        long tolerance;
+
+        BoundarySearch(long low, long high, long target, int total) {
+            this.low = low;
+            this.high = high;
+            this.target = target;
+            this.tolerance = Math.max(1, (long) (total / shardCount * BOUNDARY_TOLERANCE));
+        }
+
+        public Long call() {
+            for (int probes = 0; probes < MAX_PROBES_PER_BOUNDARY && high - low > 1; probes++) {
+                long middle = low + (high - low) / 2;
+                int count = countBelow(middle);
+                if (Math.abs(count - target) <= tolerance) {
+                    return middle;
+                }
+                if (count < target) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            return low + (high - low) / 2;
+        }
+    }
+}
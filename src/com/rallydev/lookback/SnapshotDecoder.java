@@ -0,0 +1,243 @@
+package com.rallydev.lookback;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Decodes Lookback API responses straight off the wire with Gson's streaming JsonReader.
+ * The envelope fields are read into a LookbackResult as they're encountered, while the
+ * Results array can either be collected or handed out one snapshot at a time.
+ */
+class SnapshotDecoder implements Closeable {
+
+    JsonReader reader;
+    NumberPolicy numberPolicy;
+    SymbolTable symbols;
+
+    SnapshotDecoder(Reader in) {
+        this(in, NumberPolicy.DOUBLE);
+    }
+
+    SnapshotDecoder(Reader in, NumberPolicy numberPolicy) {
+        this(in, numberPolicy, null);
+    }
+
+    /**
+     * @param symbols - interns snapshot field names and short string values, or null
+     */
+    SnapshotDecoder(Reader in, NumberPolicy numberPolicy, SymbolTable symbols) {
+        this.reader = new JsonReader(in);
+        this.numberPolicy = numberPolicy;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Decode the whole response, collecting every snapshot into the Results list.
+     */
+    LookbackResult readResult() throws IOException {
+        LookbackResult result = new LookbackResult();
+        if (readUntilResults(result)) {
+            while (hasNextSnapshot()) {
+                result.Results.add(nextSnapshot());
+            }
+            finishResults(result);
+        }
+        return result;
+    }
+
+    /**
+     * Decode the whole response, storing the snapshots column by column in the Columns
+     * field rather than as maps in the Results list.
+     */
+    LookbackResult readColumnarResult() throws IOException {
+        LookbackResult result = new LookbackResult();
+        ColumnarPageBuilder builder = new ColumnarPageBuilder(numberPolicy);
+        if (readUntilResults(result)) {
+            while (hasNextSnapshot()) {
+                nextSnapshotInto(builder);
+            }
+            finishResults(result);
+        }
+        result.Columns = builder.build();
+        return result;
+    }
+
+    /**
+     * Read envelope fields until the Results array has been opened.
+     * @return true when positioned inside the Results array, false if the response had none
+     */
+    boolean readUntilResults(LookbackResult result) throws IOException {
+        result.Results = new ArrayList<Map<String, Object>>();
+        reader.beginObject();
+        return readEnvelope(result);
+    }
+
+    boolean hasNextSnapshot() throws IOException {
+        return reader.hasNext();
+    }
+
+    Map<String, Object> nextSnapshot() throws IOException {
+        return readObject();
+    }
+
+    void nextSnapshotInto(ColumnarPageBuilder builder) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = intern(reader.nextName());
+            switch (reader.peek()) {
+                case NUMBER:
+                    builder.appendNumber(name, reader.nextString());
+                    break;
+                case STRING:
+                    builder.appendString(name, intern(reader.nextString()));
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    builder.appendNull(name);
+                    break;
+                default:
+                    builder.appendObject(name, readValue());
+            }
+        }
+        reader.endObject();
+        builder.endRow();
+    }
+
+    /**
+     * Close the Results array and read whatever envelope fields follow it.
+     */
+    void finishResults(LookbackResult result) throws IOException {
+        reader.endArray();
+        readEnvelope(result);
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private boolean readEnvelope(LookbackResult result) throws IOException {
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("Results".equals(name)) {
+                reader.beginArray();
+                return true;
+            } else {
+                readEnvelopeField(result, name);
+            }
+        }
+        reader.endObject();
+        return false;
+    }
+
+    void readEnvelopeField(LookbackResult result, String name) throws IOException {
+        if ("_rallyAPIMajor".equals(name)) {
+            result._rallyAPIMajor = reader.nextString();
+        } else if ("_rallyAPIMinor".equals(name)) {
+            result._rallyAPIMinor = reader.nextString();
+        } else if ("Errors".equals(name)) {
+            result.Errors = readStringList();
+        } else if ("Warnings".equals(name)) {
+            result.Warnings = readStringList();
+        } else if ("ThreadStats".equals(name)) {
+            result.ThreadStats = readStringMap();
+        } else if ("Timings".equals(name)) {
+            result.Timings = readIntegerMap();
+        } else if ("GeneratedQuery".equals(name)) {
+            result.GeneratedQuery = readObject();
+        } else if ("TotalResultCount".equals(name)) {
+            result.TotalResultCount = reader.nextInt();
+        } else if ("StartIndex".equals(name)) {
+            result.StartIndex = reader.nextInt();
+        } else if ("PageSize".equals(name)) {
+            result.PageSize = reader.nextInt();
+        } else if ("ETLDate".equals(name)) {
+            result.ETLDate = reader.nextString();
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    Object readValue() throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject();
+            case BEGIN_ARRAY:
+                return readArray();
+            case STRING:
+                return intern(reader.nextString());
+            case NUMBER:
+                return numberPolicy.decode(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                throw new IllegalStateException("Unexpected token " + reader.peek());
+        }
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = intern(reader.nextName());
+            object.put(name, readValue());
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private String intern(String value) {
+        return symbols == null ? value : symbols.intern(value);
+    }
+
+    private List<Object> readArray() throws IOException {
+        List<Object> array = new ArrayList<Object>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.add(readValue());
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private List<String> readStringList() throws IOException {
+        List<String> list = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(reader.nextString());
+        }
+        reader.endArray();
+        return list;
+    }
+
+    private Map<String, String> readStringMap() throws IOException {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            map.put(name, reader.nextString());
+        }
+        reader.endObject();
+        return map;
+    }
+
+    private Map<String, Integer> readIntegerMap() throws IOException {
+        Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            map.put(name, reader.nextInt());
+        }
+        reader.endObject();
+        return map;
+    }
+}
@@ -0,0 +1,16 @@
+package com.rallydev.lookback;
+
+import java.util.Map;
+
+/**
+ * Callback for receiving snapshots one at a time as they are read from the server,
+ * see LookbackQuery's execute(SnapshotHandler) method.
+ */
+public interface SnapshotHandler {
+
+    /**
+     * Called once for each snapshot in the order the server returned them.
+     * @param snapshot - the snapshot, as represented by a map object
+     */
+    void handleSnapshot(Map<String, Object> snapshot);
+}
@@ -0,0 +1,249 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * SnapshotIntervalIndex objects answer "which snapshots were valid at this moment" over
+ * snapshots that have already been fetched, the local equivalent of an __At query. A
+ * snapshot is valid at T when _ValidFrom <= T < _ValidTo.
+ *
+ *      SnapshotIntervalIndex index = new SnapshotIntervalIndex(query.iterateAll(4));
+ *      List<Map<String, Object>> backlog = index.getValidAt("2013-01-15T00:00:00.000Z");
+ *
+ * Single dates are answered from a centered interval tree in O(log n + k). A whole series
+ * of dates, such as every day of a release, can be answered in one sweep with getValidAtEach.
+ */
+public class SnapshotIntervalIndex {
+
+    private List<Map<String, Object>> snapshots = new ArrayList<Map<String, Object>>();
+    private long[] validFrom;
+    private long[] validTo;
+    private Node root;
+
+    /**
+     * Index snapshots read from an iterator, such as a SnapshotIterator.
+     * @param snapshots - snapshots with _ValidFrom and _ValidTo
+     */
+    public SnapshotIntervalIndex(Iterator<Map<String, Object>> snapshots) {
+        while (snapshots.hasNext()) {
+            this.snapshots.add(snapshots.next());
+        }
+        build();
+    }
+
+    /**
+     * Index a collection of snapshots, such as a page's Results or a SnapshotStore.
+     * @param snapshots - snapshots with _ValidFrom and _ValidTo
+     */
+    public SnapshotIntervalIndex(Iterable<Map<String, Object>> snapshots) {
+        this(snapshots.iterator());
+    }
+
+    /**
+     * @return int - the number of snapshots indexed
+     */
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Find the snapshots that were valid at a moment.
+     * @param date - an ISO 8601 UTC timestamp, such as 2013-01-15T00:00:00.000Z
+     * @return List - the valid snapshots, in no particular order
+     */
+    public List<Map<String, Object>> getValidAt(String date) {
+        long at = parseDate(date);
+        List<Map<String, Object>> valid = new ArrayList<Map<String, Object>>();
+        Node node = root;
+        while (node != null) {
+            if (at < node.center) {
+                for (int i = 0; i < node.byStart.length && validFrom[node.byStart[i]] <= at; i++) {
+                    valid.add(snapshots.get(node.byStart[i]));
+                }
+                node = node.left;
+            } else {
+                for (int i = 0; i < node.byEnd.length && validTo[node.byEnd[i]] > at; i++) {
+                    valid.add(snapshots.get(node.byEnd[i]));
+                }
+                node = node.right;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Find the snapshots valid at each of a series of moments in a single sweep over the
+     * snapshots, rather than a separate search per date.
+     * @param dates - ISO 8601 UTC timestamps, in any order
+     * @return Map - the valid snapshots for each date, keyed in the order the dates were given
+     */
+    public Map<String, List<Map<String, Object>>> getValidAtEach(List<String> dates) {
+        Map<String, List<Map<String, Object>>> validAt = new LinkedHashMap<String, List<Map<String, Object>>>();
+        for (String date : dates) {
+            validAt.put(date, null);
+        }
+        SortedMap<Long, List<String>> sortedDates = new TreeMap<Long, List<String>>();
+        for (String date : dates) {
+            long at = parseDate(date);
+            if (!sortedDates.containsKey(at)) {
+                sortedDates.put(at, new ArrayList<String>(1));
+            }
+            sortedDates.get(at).add(date);
+        }
+
+        Integer[] byStart = sortedIndexes(validFrom);
+        PriorityQueue<Integer> byEnd = new PriorityQueue<Integer>(Math.max(1, snapshots.size()), new KeyComparator(validTo, false));
+        int[] active = new int[snapshots.size()];
+        int[] activeSlot = new int[snapshots.size()];
+        int activeCount = 0;
+        int next = 0;
+
+        for (Map.Entry<Long, List<String>> date : sortedDates.entrySet()) {
+            long at = date.getKey();
+            while (next < byStart.length && validFrom[byStart[next]] <= at) {
+                int added = byStart[next++];
+                activeSlot[added] = activeCount;
+                active[activeCount++] = added;
+                byEnd.add(added);
+            }
+            while (!byEnd.isEmpty() && validTo[byEnd.peek()] <= at) {
+                int removed = byEnd.poll();
+                int moved = active[--activeCount];
+                active[activeSlot[removed]] = moved;
+                activeSlot[moved] = activeSlot[removed];
+            }
+
+            List<Map<String, Object>> valid = new ArrayList<Map<String, Object>>(activeCount);
+            for (int i = 0; i < activeCount; i++) {
+                valid.add(snapshots.get(active[i]));
+            }
+            for (String original : date.getValue()) {
+                validAt.put(original, valid);
+            }
+        }
+        return validAt;
+    }
+
+    private void build() {
+        int count = snapshots.size();
+        validFrom = new long[count];
+        validTo = new long[count];
+        int[] nonEmpty = new int[count];
+        int nonEmptyCount = 0;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> snapshot = snapshots.get(i);
+            validFrom[i] = parseSnapshotDate(snapshot, "_ValidFrom", Long.MIN_VALUE);
+            validTo[i] = parseSnapshotDate(snapshot, "_ValidTo", Long.MAX_VALUE);
+            if (validFrom[i] < validTo[i]) {
+                nonEmpty[nonEmptyCount++] = i;
+            }
+        }
+        root = buildNode(Arrays.copyOf(nonEmpty, nonEmptyCount));
+    }
+
+    /**
+     * Build a subtree centered on the median start of its intervals. Intervals containing
+     * the center stay at the node, those wholly before or after it go left or right. Empty
+     * intervals are never indexed, so the interval starting at the center always stays.
+     */
+    private Node buildNode(int[] intervals) {
+        if (intervals.length == 0) {
+            return null;
+        }
+        long[] starts = new long[intervals.length];
+        for (int i = 0; i < intervals.length; i++) {
+            starts[i] = validFrom[intervals[i]];
+        }
+        Arrays.sort(starts);
+
+        Node node = new Node();
+        node.center = starts[intervals.length / 2];
+        int[] left = new int[intervals.length];
+        int[] right = new int[intervals.length];
+        int[] crossing = new int[intervals.length];
+        int leftCount = 0;
+        int rightCount = 0;
+        int crossingCount = 0;
+        for (int interval : intervals) {
+            if (validTo[interval] <= node.center) {
+                left[leftCount++] = interval;
+            } else if (validFrom[interval] > node.center) {
+                right[rightCount++] = interval;
+            } else {
+                crossing[crossingCount++] = interval;
+            }
+        }
+
+        node.byStart = sortBy(Arrays.copyOf(crossing, crossingCount), validFrom, false);
+        node.byEnd = sortBy(Arrays.copyOf(crossing, crossingCount), validTo, true);
+        node.left = buildNode(Arrays.copyOf(left, leftCount));
+        node.right = buildNode(Arrays.copyOf(right, rightCount));
+        return node;
+    }
+
+    private int[] sortBy(int[] intervals, long[] keys, boolean descending) {
+        Integer[] boxed = new Integer[intervals.length];
+        for (int i = 0; i < intervals.length; i++) {
+            boxed[i] = intervals[i];
+        }
+        Arrays.sort(boxed, new KeyComparator(keys, descending));
+        for (int i = 0; i < intervals.length; i++) {
+            intervals[i] = boxed[i];
+        }
+        return intervals;
+    }
+
+    private Integer[] sortedIndexes(long[] keys) {
+        Integer[] indexes = new Integer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new KeyComparator(keys, false));
+        return indexes;
+    }
+
+    private static long parseSnapshotDate(Map<String, Object> snapshot, String field, long missing) {
+        Object value = snapshot.get(field);
+        if (value == null) {
+            return missing;
+        }
+        long millis = IsoDates.parse(value.toString());
+        if (millis == Long.MIN_VALUE) {
+            throw new LookbackException("Unable to read " + field + " " + value);
+        }
+        return millis;
+    }
+
+    private static long parseDate(String date) {
+        long millis = IsoDates.parse(date);
+        if (millis == Long.MIN_VALUE) {
+            throw new LookbackException("Not an ISO 8601 UTC timestamp: " + date);
+        }
+        return millis;
+    }
+
+    private static class Node {
+
+        long center;
+        int[] byStart;
+        int[] byEnd;
+        Node left;
+        Node right;
+    }
+
+    private static class KeyComparator implements Comparator<Integer> {
+
+        long[] keys;
+        boolean descending;
+
+        KeyComparator(long[] keys, boolean descending) {
+            this.keys = keys;
+            this.descending = descending;
+        }
+
+        public int compare(Integer first, Integer second) {
+            int comparison = keys[first] < keys[second] ? -1 : (keys[first] == keys[second] ? 0 : 1);
+            return descending ? -comparison : comparison;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.rallydev.lookback;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+
+/**
+ * SnapshotIterator objects iterate over every snapshot on every page of a query. Following
+ * pages are fetched in the background while the current page is being consumed, with up to
+ * readAhead pages waiting to be iterated. Obtain one from LookbackQuery's iterateAll method:
+ *
+ *      SnapshotIterator snapshots = query.iterateAll();
+ *      try {
+ *          while (snapshots.hasNext()) {
+ *              Map snapshot = snapshots.next();
+ *          }
+ *      } finally {
+ *          snapshots.close();
+ *      }
+ *
+ * Closing the iterator stops any background fetching, it is closed automatically once
+ * the last page has been consumed. Snapshots of queries using columnar results are returned
+ * as maps, copied from each row of the page.
+ *
+ * An iterator can also merge several independent queries, such as the shards of a
+ * ShardedQuery or the chunks of a ChunkedQuery, in which case the queries are paged through
+ * concurrently and snapshots are returned a page at a time in the order the pages arrive.
+ * Merged queries can overlap, so the iterator can skip snapshots it has already returned.
+ */
+public class SnapshotIterator implements Iterator<Map<String, Object>>, Closeable {
+
+    private static final Object END_OF_PAGES = new Object();
+
+    private LookbackApi api;
+    private BlockingQueue<Object> pages;
+    private Queue<LookbackQuery> pendingQueries;
+    private Set<String> returnedKeys;
+    private List<Future<?>> fetchers = new ArrayList<Future<?>>();
+    private int runningFetchers;
+
+    private Iterator<Map<String, Object>> currentPage = Collections.<Map<String, Object>>emptyList().iterator();
+    private LookbackResult lastPage;
+    private volatile boolean finished;
+
+    SnapshotIterator(LookbackApi api, LookbackQuery firstQuery, int readAhead) {
+        this(api, Collections.singletonList(firstQuery), readAhead);
+    }
+
+    SnapshotIterator(LookbackApi api, List<LookbackQuery> firstQueries, int readAhead) {
+        this(api, firstQueries, readAhead, firstQueries.size(), false);
+    }
+
+    /**
+     * Merge several queries, paging through at most parallelism of them at once.
+     * @param isDistinct - true to skip snapshots with an ObjectID and _ValidFrom already returned
+     */
+    SnapshotIterator(LookbackApi api, List<LookbackQuery> firstQueries, int readAhead, int parallelism, boolean isDistinct) {
+        if (readAhead < 1) {
+            throw new LookbackException("Read ahead must be at least 1 page");
+        }
+        if (parallelism < 1) {
+            throw new LookbackException("Parallelism must be at least 1");
+        }
+        this.api = api;
+        this.pages = new ArrayBlockingQueue<Object>(readAhead);
+        this.pendingQueries = new ConcurrentLinkedQueue<LookbackQuery>(firstQueries);
+        this.returnedKeys = isDistinct ? new HashSet<String>() : null;
+        this.runningFetchers = Math.min(parallelism, firstQueries.size());
+        this.finished = firstQueries.isEmpty();
+        for (int i = 0; i < runningFetchers; i++) {
+            fetchers.add(api.getExecutor().submit(new PageProducer()));
+        }
+    }
+
+    /**
+     * Get the most recent page to have been iterated, useful for its TotalResultCount and ETLDate.
+     * @return LookbackResult - the page currently being iterated, or null before the first call to next.
+     */
+    public LookbackResult getCurrentPage() {
+        return lastPage;
+    }
+
+    /**
+     * Checks for more snapshots, waiting on the next page to arrive if necessary.
+     * @return boolean
+     */
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            if (finished || !advancePage()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the next snapshot.
+     * @return Map - the snapshot
+     */
+    public Map<String, Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Snapshots cannot be removed from an iterator");
+    }
+
+    /**
+     * Stop fetching pages in the background and discard any that have been read ahead.
+     */
+    public void close() {
+        finished = true;
+        for (Future<?> fetcher : fetchers) {
+            fetcher.cancel(true);
+        }
+        pages.clear();
+    }
+
+    private boolean advancePage() {
+        Object next = takePage();
+        while (next == END_OF_PAGES) {
+            if (--runningFetchers == 0) {
+                finished = true;
+                return false;
+            }
+            next = takePage();
+        }
+        if (next instanceof Throwable) {
+            close();
+            if (next instanceof Error) {
+                throw (Error) next;
+            }
+            if (next instanceof RuntimeException) {
+                throw (RuntimeException) next;
+            }
+            throw new LookbackException((Throwable) next);
+        }
+        lastPage = (LookbackResult) next;
+        currentPage = returnedKeys == null ? snapshotsOn(lastPage) : skipReturned(snapshotsOn(lastPage));
+        return true;
+    }
+
+    /**
+     * Iterate a page's snapshots, copying each row of a columnar page into a map as it's reached.
+     */
+    private static Iterator<Map<String, Object>> snapshotsOn(LookbackResult page) {
+        if (page.Columns == null) {
+            return page.getResultsIterator();
+        }
+        final ColumnarPage columns = page.Columns;
+        return new Iterator<Map<String, Object>>() {
+            int next = 0;
+
+            public boolean hasNext() {
+                return next < columns.size();
+            }
+
+            public Map<String, Object> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return columns.getRow(next++).toMap();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Snapshots cannot be removed from an iterator");
+            }
+        };
+    }
+
+    private Iterator<Map<String, Object>> skipReturned(Iterator<Map<String, Object>> page) {
+        List<Map<String, Object>> unseen = new ArrayList<Map<String, Object>>();
+        while (page.hasNext()) {
+            Map<String, Object> snapshot = page.next();
+            Object objectId = snapshot.get("ObjectID");
+            Object validFrom = snapshot.get("_ValidFrom");
+            if (objectId == null || validFrom == null) {
+                close();
+                throw new LookbackException("Skipping duplicates requires ObjectID and _ValidFrom on every snapshot");
+            }
+            if (returnedKeys.add(FindPredicate.normalize(objectId) + " " + validFrom)) {
+                unseen.add(snapshot);
+            }
+        }
+        return unseen.iterator();
+    }
+
+    private Object takePage() {
+        try {
+            return pages.take();
+        } catch (InterruptedException exception) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new LookbackException(exception);
+        }
+    }
+
+    /**
+     * Pages through queries taken from pendingQueries until there are none left.
+     */
+    private class PageProducer implements Runnable {
+
+        public void run() {
+            try {
+                LookbackQuery query;
+                while ((query = pendingQueries.poll()) != null && !finished) {
+                    LookbackResult page = query.execute();
+                    pages.put(page);
+                    while (page.hasMorePages() && !finished) {
+                        page = api.getQueryForNextPage(page).execute();
+                        pages.put(page);
+                    }
+                }
+                pages.put(END_OF_PAGES);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable failure) {
+                offerFailure(failure);
+            }
+        }
+
+        /**
+         * Hand any failure, Errors included, to the consumer, which would otherwise wait
+         * forever for the end of the pages.
+         */
+        private void offerFailure(Throwable exception) {
+            try {
+                pages.put(exception);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
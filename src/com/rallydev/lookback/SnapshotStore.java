@@ -0,0 +1,512 @@
+package com.rallydev.lookback;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotStore objects keep snapshots on local disk so that history fetched once can be
+ * re-read without going back to the Lookback API. Snapshots are appended to segment files
+ * that are read and written through memory maps, and an off-heap index maps each ObjectID
+ * to its most recent version. A store is a SnapshotHandler, so it can be filled straight
+ * from a query:
+ *
+ *      SnapshotStore store = new SnapshotStore(new File("history"));
+ *      query.execute(store);
+ *      List<Map<String, Object>> versions = store.getVersions(5103028089L);
+ *      store.close();
+ *
+ * Every record holds the offset of the previous version of the same object, so an object's
+ * versions are read by following that chain from the index. The index is rebuilt by scanning
+ * the segments when a store is reopened. Each record carries a CRC of its contents and its
+ * length is written last, so a record torn by a crash is found by the scan and the segments
+ * are truncated before it.
+ */
+public class SnapshotStore implements SnapshotHandler, Iterable<Map<String, Object>>, Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    static final long NO_OFFSET = -1;
+
+    private static final Gson gson = new Gson();
+
+    File directory;
+    int segmentSize;
+    NumberPolicy numberPolicy = NumberPolicy.DOUBLE;
+
+    private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private ObjectIdIndex index = new ObjectIdIndex(1024);
+    private int writePosition;
+    private long snapshotCount;
+    private boolean closed;
+
+    /**
+     * Open a store in a directory, created if necessary, reading any snapshots already there.
+     * @param directory - directory holding the store's segment files
+     */
+    public SnapshotStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    SnapshotStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new LookbackException("Unable to create store directory " + directory);
+        }
+        try {
+            for (File file = getSegmentFile(0); file.isFile(); file = getSegmentFile(segments.size())) {
+                segments.add(map(file));
+                if (!scanSegment(segments.size() - 1)) {
+                    deleteSegmentsAfter(segments.size() - 1);
+                    break;
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.add(map(getSegmentFile(0)));
+            }
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
+    /**
+     * Set how numbers are decoded when snapshots are read back, see NumberPolicy.
+     * @param numberPolicy
+     * @return SnapshotStore - Enables method chaining
+     */
+    public SnapshotStore setNumberPolicy(NumberPolicy numberPolicy) {
+        this.numberPolicy = numberPolicy;
+        return this;
+    }
+
+    /**
+     * Append a snapshot to the store as the latest version of its ObjectID.
+     * @param snapshot - a snapshot including its ObjectID
+     */
+    public synchronized void handleSnapshot(Map<String, Object> snapshot) {
+        checkOpen();
+        Object objectId = snapshot.get("ObjectID");
+        if (!(objectId instanceof Number)) {
+            throw new LookbackException("Snapshots need an ObjectID to be stored");
+        }
+        long id = ((Number) objectId).longValue();
+        byte[] body = encode(snapshot);
+        int length = HEADER_SIZE + body.length;
+        if (length > segmentSize) {
+            throw new LookbackException("Snapshot of " + length + " bytes is larger than a store segment");
+        }
+        if (writePosition + length > segmentSize) {
+            startSegment();
+        }
+
+        long offset = toOffset(segments.size() - 1, writePosition);
+        long previous = index.put(id, offset);
+        ByteBuffer segment = segments.get(segments.size() - 1);
+        segment.position(writePosition + 4);
+        segment.putInt(checksum(id, previous, body));
+        segment.putLong(id);
+        segment.putLong(previous);
+        segment.put(body);
+        segment.putInt(writePosition, body.length);
+        writePosition += length;
+        snapshotCount++;
+    }
+
+    /**
+     * Append every snapshot on a page of results.
+     * @param result
+     */
+    public synchronized void appendAll(LookbackResult result) {
+        for (Map<String, Object> snapshot : result.Results) {
+            handleSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Read every stored version of an object, oldest first.
+     * @param objectId
+     * @return List - the object's snapshots in the order they were appended
+     */
+    public synchronized List<Map<String, Object>> getVersions(long objectId) {
+        checkOpen();
+        LinkedList<Map<String, Object>> versions = new LinkedList<Map<String, Object>>();
+        for (long offset = index.get(objectId); offset != NO_OFFSET; offset = readPreviousOffset(offset)) {
+            versions.addFirst(readSnapshot(offset));
+        }
+        return versions;
+    }
+
+    /**
+     * Read the most recently appended version of an object.
+     * @param objectId
+     * @return Map - the latest snapshot, or null if the object isn't stored
+     */
+    public synchronized Map<String, Object> getLatest(long objectId) {
+        checkOpen();
+        long offset = index.get(objectId);
+        return offset == NO_OFFSET ? null : readSnapshot(offset);
+    }
+
+    /**
+     * Iterate over every stored snapshot in the order they were appended. Snapshots
+     * appended after the iterator is created may or may not be included.
+     * @return Iterator
+     */
+    public Iterator<Map<String, Object>> iterator() {
+        return new Iterator<Map<String, Object>>() {
+            long offset = toOffset(0, 0);
+            Map<String, Object> next = advance();
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map<String, Object> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map<String, Object> current = next;
+                next = advance();
+                return current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private Map<String, Object> advance() {
+                synchronized (SnapshotStore.this) {
+                    checkOpen();
+                    int segment = (int) (offset / segmentSize);
+                    int position = (int) (offset % segmentSize);
+                    if (segment < segments.size() - 1 && !hasRecordAt(segments.get(segment), position)) {
+                        segment++;
+                        position = 0;
+                    }
+                    if (segment >= segments.size() || !hasRecordAt(segments.get(segment), position)) {
+                        return null;
+                    }
+                    long current = toOffset(segment, position);
+                    offset = current + HEADER_SIZE + segments.get(segment).getInt(position);
+                    return readSnapshot(current);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return long - the number of snapshots stored
+     */
+    public synchronized long getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * @return int - the number of distinct ObjectIDs stored
+     */
+    public synchronized int getObjectCount() {
+        return index.size();
+    }
+
+    /**
+     * Write appended snapshots through to disk.
+     */
+    public synchronized void flush() {
+        checkOpen();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Flush and close the store. The segment files stay mapped until the buffers are
+     * garbage collected.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            flush();
+            closed = true;
+            segments.clear();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new LookbackException("Snapshot store is closed");
+        }
+    }
+
+    /**
+     * Encode a snapshot so that it decodes to an equal map: null fields are kept, and Doubles
+     * are written through NumberPolicy so integral ones such as ObjectIDs aren't written in
+     * exponent form, which Gson's own serializer does and won't let a type adapter change.
+     */
+    private byte[] encode(Map<String, Object> snapshot) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(body, "UTF-8"));
+            writer.setSerializeNulls(true);
+            writeValue(writer, snapshot);
+            writer.close();
+            return body.toByteArray();
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof String) {
+            writer.value((String) value);
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Double) {
+            writer.value(new BigDecimal(NumberPolicy.encode((Double) value)));
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value instanceof Map) {
+            writer.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writer.name(String.valueOf(entry.getKey()));
+                writeValue(writer, entry.getValue());
+            }
+            writer.endObject();
+        } else if (value instanceof Collection) {
+            writer.beginArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(writer, element);
+            }
+            writer.endArray();
+        } else {
+            gson.toJson(value, value.getClass(), writer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readSnapshot(long offset) {
+        ByteBuffer record = segments.get((int) (offset / segmentSize)).duplicate();
+        int position = (int) (offset % segmentSize);
+        int length = record.getInt(position);
+        record.position(position + HEADER_SIZE);
+        record.limit(position + HEADER_SIZE + length);
+        try {
+            Reader in = new InputStreamReader(new ByteBufferInputStream(record), "UTF-8");
+            return (Map<String, Object>) new SnapshotDecoder(in, numberPolicy).readValue();
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
+    private long readPreviousOffset(long offset) {
+        return segments.get((int) (offset / segmentSize)).getLong((int) (offset % segmentSize) + 4 + 4 + 8);
+    }
+
+    private boolean hasRecordAt(ByteBuffer segment, int position) {
+        return position + HEADER_SIZE <= segmentSize && segment.getInt(position) > 0;
+    }
+
+    /**
+     * Checks that a record found on disk was written in full.
+     */
+    private boolean isCompleteRecord(ByteBuffer segment, int position) {
+        int length = segment.getInt(position);
+        if (length > segmentSize - position - HEADER_SIZE) {
+            return false;
+        }
+        byte[] body = new byte[length];
+        ByteBuffer record = segment.duplicate();
+        record.position(position + HEADER_SIZE);
+        record.get(body);
+        long id = segment.getLong(position + 4 + 4);
+        long previous = segment.getLong(position + 4 + 4 + 8);
+        return segment.getInt(position + 4) == checksum(id, previous, body);
+    }
+
+    private static int checksum(long id, long previous, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putLong(id).putLong(previous).array());
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read the index entries of a segment found on disk, leaving the write position at its end.
+     * @return false if the segment ended in a torn record, which has been truncated
+     */
+    private boolean scanSegment(int segmentNumber) {
+        ByteBuffer segment = segments.get(segmentNumber);
+        int position = 0;
+        while (hasRecordAt(segment, position)) {
+            if (!isCompleteRecord(segment, position)) {
+                truncate(segment, position);
+                writePosition = position;
+                return false;
+            }
+            index.put(segment.getLong(position + 4 + 4), toOffset(segmentNumber, position));
+            position += HEADER_SIZE + segment.getInt(position);
+            snapshotCount++;
+        }
+        writePosition = position;
+        return true;
+    }
+
+    private void truncate(ByteBuffer segment, int position) {
+        byte[] zeros = new byte[Math.min(64 * 1024, segmentSize - position)];
+        ByteBuffer tail = segment.duplicate();
+        tail.position(position);
+        while (tail.hasRemaining()) {
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+        }
+    }
+
+    private void startSegment() {
+        try {
+            segments.add(map(getSegmentFile(segments.size())));
+            writePosition = 0;
+        } catch (IOException exception) {
+            throw new LookbackException(exception);
+        }
+    }
+
+    /**
+     * Drop segments written after a torn record, their records were appended after it.
+     */
+    private void deleteSegmentsAfter(int segmentNumber) {
+        for (int next = segmentNumber + 1; getSegmentFile(next).isFile(); next++) {
+            if (!getSegmentFile(next).delete()) {
+                throw new LookbackException("Unable to truncate store segment " + getSegmentFile(next));
+            }
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            return access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            access.close();
+        }
+    }
+
+    private File getSegmentFile(int segmentNumber) {
+        return new File(directory, String.format("segment-%05d.dat", segmentNumber));
+    }
+
+    private long toOffset(int segmentNumber, int position) {
+        return (long) segmentNumber * segmentSize + position;
+    }
+
+    /**
+     * An open addressing hash from ObjectID to the offset of its latest record, held in a
+     * direct buffer so large stores don't add millions of boxed entries to the heap.
+     */
+    static class ObjectIdIndex {
+
+        private static final int SLOT_SIZE = 16;
+
+        private ByteBuffer slots;
+        private int capacity;
+        private int size;
+
+        ObjectIdIndex(int capacity) {
+            this.capacity = capacity;
+            this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        /**
+         * Point an ObjectID at a new offset.
+         * @return the offset it pointed at before, or NO_OFFSET
+         */
+        long put(long objectId, long offset) {
+            if ((size + 1) * 2 > capacity) {
+                grow();
+            }
+            int slot = find(objectId);
+            long previous = slots.getLong(slot * SLOT_SIZE + 8) - 1;
+            if (previous == NO_OFFSET) {
+                size++;
+            }
+            slots.putLong(slot * SLOT_SIZE, objectId);
+            slots.putLong(slot * SLOT_SIZE + 8, offset + 1);
+            return previous;
+        }
+
+        long get(long objectId) {
+            return slots.getLong(find(objectId) * SLOT_SIZE + 8) - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Find the slot holding an ObjectID, or the empty slot where it belongs. Offsets are
+         * stored plus one so that an all zero slot is empty.
+         */
+        private int find(long objectId) {
+            int slot = (int) (mix(objectId) & (capacity - 1));
+            while (slots.getLong(slot * SLOT_SIZE + 8) != 0 && slots.getLong(slot * SLOT_SIZE) != objectId) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            return slot;
+        }
+
+        private void grow() {
+            ByteBuffer old = slots;
+            int oldCapacity = capacity;
+            capacity *= 2;
+            slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            for (int i = 0; i < oldCapacity; i++) {
+                long stored = old.getLong(i * SLOT_SIZE + 8);
+                if (stored != 0) {
+                    int slot = find(old.getLong(i * SLOT_SIZE));
+                    slots.putLong(slot * SLOT_SIZE, old.getLong(i * SLOT_SIZE));
+                    slots.putLong(slot * SLOT_SIZE + 8, stored);
+                }
+            }
+        }
+
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer without copying them to the heap first.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.rallydev.lookback;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * SnapshotStream objects iterate over one page of Lookback snapshots as they are read
+ * from the server, so only a single snapshot needs to be held in memory at a time.
+ * Obtain one from LookbackQuery's openStream method, and close it when finished:
+ *
+ *      SnapshotStream stream = query.openStream();
+ *      try {
+ *          while (stream.hasNext()) {
+ *              Map snapshot = stream.next();
+ *          }
+ *      } finally {
+ *          stream.close();
+ *      }
+ *
+ * The envelope of the response is available from getResult, its Results list is left empty.
+ * Fields that the server sends after the snapshots, such as Timings, are filled in once
+ * the stream has been read to the end.
+ */
+public class SnapshotStream implements Iterator<Map<String, Object>>, Closeable {
+
+    private SnapshotDecoder decoder;
+    private LookbackResult result;
+    private LookbackQuery queryContext;
+    private Closeable connection;
+    private ResponseBody body;
+    private QueryEvent event;
+
+    private boolean inResults;
+    private boolean finished;
+
+    SnapshotStream(SnapshotDecoder decoder, LookbackQuery queryContext, Closeable connection, ResponseBody body, QueryEvent event) throws IOException {
+        this.decoder = decoder;
+        this.queryContext = queryContext;
+        this.connection = connection;
+        this.body = body;
+        this.event = event;
+        this.result = new LookbackResult();
+        this.inResults = decoder.readUntilResults(result);
+        result.validate(queryContext);
+        if (!inResults) {
+            finish();
+        }
+    }
+
+    /**
+     * Get the envelope of this page of results. Results is always empty, the snapshots
+     * are only available through iteration.
+     * @return LookbackResult
+     */
+    public LookbackResult getResult() {
+        return result;
+    }
+
+    /**
+     * Checks if there are more snapshots to be read from this page.
+     * @return boolean
+     */
+    public boolean hasNext() {
+        if (finished) {
+            return false;
+        }
+        try {
+            if (decoder.hasNextSnapshot()) {
+                return true;
+            }
+            decoder.finishResults(result);
+            result.validate(queryContext);
+            finish();
+            return false;
+        } catch (IOException exception) {
+            throw fail(new LookbackException(exception));
+        } catch (RuntimeException exception) {
+            throw fail(exception);
+        }
+    }
+
+    /**
+     * Read the next snapshot from the server.
+     * @return Map - the snapshot
+     */
+    public Map<String, Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            Map<String, Object> snapshot = decoder.nextSnapshot();
+            if (event != null) {
+                event.snapshotCount++;
+            }
+            return snapshot;
+        } catch (IOException exception) {
+            throw fail(new LookbackException(exception));
+        } catch (RuntimeException exception) {
+            throw fail(exception);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Snapshots cannot be removed from a stream");
+    }
+
+    /**
+     * Close the stream, releasing its connection. Closing a stream before it has been
+     * read to the end drops the connection rather than reading the rest of the page, and
+     * the query is reported to listeners as aborted with what had been read.
+     */
+    public void close() {
+        if (!finished) {
+            finished = true;
+            if (event != null) {
+                event.isAborted = true;
+            }
+            report();
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        finished = true;
+        decoder.close();
+        report();
+    }
+
+    private void report() {
+        if (body != null) {
+            body.recordSizes(result);
+        }
+        if (event != null) {
+            if (body != null) {
+                body.recordTimings(event);
+            }
+            queryContext.parentApi.fireQueryCompleted(event, result);
+        }
+    }
+
+    private RuntimeException fail(RuntimeException failure) {
+        if (event != null && !finished) {
+            queryContext.parentApi.fireQueryFailed(event, failure);
+            event = null;
+        }
+        return failure;
+    }
+}
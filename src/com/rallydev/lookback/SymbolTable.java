@@ -0,0 +1,155 @@
+package com.rallydev.lookback;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of canonical strings shared by the decoders of a LookbackApi, so that
+ * field names and short repeated values such as ScheduleState, _TypeHierarchy entries and
+ * _ValidTo dates are held once rather than once per snapshot.
+ *
+ *      SymbolTable symbols = new SymbolTable(8192, 32);
+ *      LookbackApi api = new LookbackApi().setSymbolTable(symbols);
+ *      ...
+ *      double hitRate = symbols.getHitRate();
+ *
+ * The table is a fixed array of slots indexed by hash. A string found in its slot is a hit
+ * and the stored instance is returned, anything else replaces the slot's occupant, so the
+ * table never grows and high cardinality values simply cycle through it. Strings longer
+ * than maxLength, such as names and descriptions, are never stored. Gson already pools
+ * short strings within a single response, the table carries them across pages, across
+ * parallel fetches and into LazySnapshots, which Gson never sees. Lookups don't lock,
+ * and a SymbolTable is safe to share between threads and LookbackApi objects.
+ */
+public class SymbolTable {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_MAX_LENGTH = 32;
+
+    private static final int STRIPES = 16;
+    private static final int STRIPE_WIDTH = 8;
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final int maxLength;
+
+    private final AtomicLongArray hits = new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+    private final AtomicLongArray misses = new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+
+    /**
+     * Create a table of DEFAULT_CAPACITY slots holding strings of up to DEFAULT_MAX_LENGTH.
+     */
+    public SymbolTable() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param capacity - the number of slots, rounded up to a power of two
+     * @param maxLength - the longest string to intern
+     */
+    public SymbolTable(int capacity, int maxLength) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<String>(size);
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Get the canonical instance of a string, storing it if the table doesn't hold one.
+     * @param value - the string to intern, may be null
+     * @return String - an equal string, the same instance for every hit
+     */
+    public String intern(String value) {
+        if (value == null || value.length() > maxLength) {
+            return value;
+        }
+        int hash = value.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String existing = slots.get(slot);
+        if (existing != null && existing.equals(value)) {
+            hits.incrementAndGet(stripe());
+            return existing;
+        }
+        slots.lazySet(slot, value);
+        misses.incrementAndGet(stripe());
+        return value;
+    }
+
+    /**
+     * @return long - the number of strings found in the table
+     */
+    public long getHitCount() {
+        return sum(hits);
+    }
+
+    /**
+     * @return long - the number of internable strings that weren't in the table
+     */
+    public long getMissCount() {
+        return sum(misses);
+    }
+
+    /**
+     * @return double - the fraction of internable strings found in the table, 0 before any lookups
+     */
+    public double getHitRate() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return int - the number of occupied slots
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return int - the number of slots
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Empty the table and zero the hit and miss counts.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+        for (int i = 0; i < hits.length(); i++) {
+            hits.set(i, 0);
+            misses.set(i, 0);
+        }
+    }
+
+    /**
+     * Counts are striped by thread, each stripe on its own cache line, so decoders running
+     * on parallel fetch threads don't contend on a single counter.
+     */
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_WIDTH;
+    }
+
+    private static long sum(AtomicLongArray counts) {
+        long sum = 0;
+        for (int i = 0; i < counts.length(); i += STRIPE_WIDTH) {
+            sum += counts.get(i);
+        }
+        return sum;
+    }
+}
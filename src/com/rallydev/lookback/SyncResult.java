@@ -0,0 +1,33 @@
+package com.rallydev.lookback;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The snapshots created or closed since a watermark, along with the watermark to use
+ * for the next sync. See LookbackQuery's syncSince methods.
+ */
+public class SyncResult {
+
+    private List<Map<String, Object>> snapshots;
+    private Watermark watermark;
+
+    SyncResult(List<Map<String, Object>> snapshots, Watermark watermark) {
+        this.snapshots = snapshots;
+        this.watermark = watermark;
+    }
+
+    /**
+     * @return List - every snapshot created or closed since the previous watermark
+     */
+    public List<Map<String, Object>> getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return Watermark - the watermark to pass to the next sync
+     */
+    public Watermark getWatermark() {
+        return watermark;
+    }
+}
@@ -0,0 +1,59 @@
+package com.rallydev.lookback;
+
+import java.util.*;
+
+/**
+ * The result of a TimeSeriesAggregator, a measure for each group at each date, such as the
+ * points in each ScheduleState on each day of a release.
+ *
+ *      for (Object state : series.getGroups()) {
+ *          double[] points = series.getValues(state);     // one value per date
+ *      }
+ */
+public class TimeSeries {
+
+    private List<String> dates;
+    private Map<Object, double[]> values;
+
+    TimeSeries(List<String> dates, Map<Object, double[]> values) {
+        this.dates = dates;
+        this.values = values;
+    }
+
+    /**
+     * @return List - the dates of the series, earliest first
+     */
+    public List<String> getDates() {
+        return Collections.unmodifiableList(dates);
+    }
+
+    /**
+     * @return Set - every group seen, in the order first encountered
+     */
+    public Set<Object> getGroups() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * @param group
+     * @return double[] - the group's value at each date, or zeros for a group that wasn't seen
+     */
+    public double[] getValues(Object group) {
+        double[] series = values.get(group);
+        return series == null ? new double[dates.size()] : series.clone();
+    }
+
+    /**
+     * @param group
+     * @param date - one of the series' dates
+     * @return double - the group's value at the date
+     */
+    public double getValue(Object group, String date) {
+        int index = dates.indexOf(date);
+        if (index < 0) {
+            throw new LookbackException("Date " + date + " is not in the series");
+        }
+        double[] series = values.get(group);
+        return series == null ? 0 : series[index];
+    }
+}
@@ -0,0 +1,392 @@
+package com.rallydev.lookback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimeSeriesAggregator objects compute burndown and cumulative flow style series from
+ * snapshots that have already been fetched: for each date, the count or sum of a field over
+ * the snapshots valid at that date, split by a group-by field.
+ *
+ *      TimeSeries flow = new TimeSeriesAggregator(releaseDays)
+ *                          .groupBy("ScheduleState")
+ *                          .sum("PlanEstimate")
+ *                          .aggregate(snapshots);
+ *
+ * Each snapshot is visited once. Its measure is added at the first date it is valid and
+ * subtracted at the first date after it closes, and a running sum over the dates yields the
+ * series. The snapshots are split into partitions that are accumulated on separate threads
+ * into primitive arrays and then merged. The calling thread accumulates partitions too, the
+ * others run on a daemon pool shared by every aggregator whose idle threads expire.
+ */
+public class TimeSeriesAggregator {
+
+    static final int MIN_PARTITION_SIZE = 16384;
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lookback-aggregate-%d").build());
+
+    List<String> dates;
+    long[] dateMillis;
+    String groupField;
+    String sumField;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param dates - ISO 8601 UTC timestamps to compute the series at
+     */
+    public TimeSeriesAggregator(List<String> dates) {
+        SortedMap<Long, String> sorted = new TreeMap<Long, String>();
+        for (String date : dates) {
+            long millis = IsoDates.parse(date);
+            if (millis == Long.MIN_VALUE) {
+                throw new LookbackException("Not an ISO 8601 UTC timestamp: " + date);
+            }
+            sorted.put(millis, date);
+        }
+        this.dates = new ArrayList<String>(sorted.values());
+        this.dateMillis = new long[sorted.size()];
+        int i = 0;
+        for (long millis : sorted.keySet()) {
+            dateMillis[i++] = millis;
+        }
+    }
+
+    /**
+     * Split the series by the value of a field, otherwise every snapshot is in a single
+     * null group.
+     * @param field
+     * @return TimeSeriesAggregator - Enables method chaining
+     */
+    public TimeSeriesAggregator groupBy(String field) {
+        this.groupField = field;
+        return this;
+    }
+
+    /**
+     * Count the snapshots valid at each date, the default measure.
+     * @return TimeSeriesAggregator - Enables method chaining
+     */
+    public TimeSeriesAggregator count() {
+        this.sumField = null;
+        return this;
+    }
+
+    /**
+     * Sum a numeric field over the snapshots valid at each date, missing values count as 0.
+     * @param field
+     * @return TimeSeriesAggregator - Enables method chaining
+     */
+    public TimeSeriesAggregator sum(String field) {
+        this.sumField = field;
+        return this;
+    }
+
+    /**
+     * Set how many threads to aggregate with, defaults to the number of processors.
+     * @param parallelism
+     * @return TimeSeriesAggregator - Enables method chaining
+     */
+    public TimeSeriesAggregator setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new LookbackException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Aggregate snapshot maps, such as those returned by fetchAll or held in a SnapshotStore.
+     * @param snapshots - snapshots with _ValidFrom and _ValidTo
+     * @return TimeSeries
+     */
+    @SuppressWarnings("unchecked")
+    public TimeSeries aggregate(Iterable<Map<String, Object>> snapshots) {
+        List<Map<String, Object>> rows;
+        if (snapshots instanceof List) {
+            rows = (List<Map<String, Object>>) snapshots;
+        } else {
+            rows = new ArrayList<Map<String, Object>>();
+            for (Map<String, Object> snapshot : snapshots) {
+                rows.add(snapshot);
+            }
+        }
+        return aggregate(new MapRows(rows));
+    }
+
+    /**
+     * Aggregate a page of columnar results, reading timestamps and measures straight from
+     * the primitive columns.
+     * @param page
+     * @return TimeSeries
+     */
+    public TimeSeries aggregate(ColumnarPage page) {
+        return aggregate(new ColumnarRows(page));
+    }
+
+    /**
+     * Aggregate every page of a columnar query, such as the Columns of the results returned
+     * by fetchAll, into one series. The pages' difference arrays are merged, so the result is
+     * the same as aggregating all of their snapshots together.
+     * @param pages
+     * @return TimeSeries
+     */
+    public TimeSeries aggregatePages(Iterable<ColumnarPage> pages) {
+        List<Rows> rows = new ArrayList<Rows>();
+        for (ColumnarPage page : pages) {
+            rows.add(new ColumnarRows(page));
+        }
+        return aggregate(rows);
+    }
+
+    private TimeSeries aggregate(Rows rows) {
+        return aggregate(Collections.singletonList(rows));
+    }
+
+    private TimeSeries aggregate(List<Rows> pages) {
+        List<Range> ranges = new ArrayList<Range>();
+        long rowCount = 0;
+        for (Rows rows : pages) {
+            int pieces = Math.max(1, Math.min(parallelism, rows.size() / MIN_PARTITION_SIZE));
+            for (int i = 0; i < pieces; i++) {
+                int from = (int) ((long) rows.size() * i / pieces);
+                int to = (int) ((long) rows.size() * (i + 1) / pieces);
+                ranges.add(new Range(rows, from, to));
+            }
+            rowCount += rows.size();
+        }
+        int partitions = (int) Math.max(1, Math.min(Math.min(parallelism, ranges.size()), rowCount / MIN_PARTITION_SIZE));
+        runPartitions(ranges, partitions);
+
+        Map<Object, double[]> merged = new LinkedHashMap<Object, double[]>();
+        for (Range range : ranges) {
+            for (Map.Entry<Object, Integer> group : range.groups.entrySet()) {
+                double[] total = merged.get(group.getKey());
+                if (total == null) {
+                    total = new double[dates.size() + 1];
+                    merged.put(group.getKey(), total);
+                }
+                double[] differences = range.differences.get(group.getValue());
+                for (int i = 0; i < total.length; i++) {
+                    total[i] += differences[i];
+                }
+            }
+        }
+
+        Map<Object, double[]> series = new LinkedHashMap<Object, double[]>();
+        for (Map.Entry<Object, double[]> group : merged.entrySet()) {
+            double[] values = new double[dates.size()];
+            double running = 0;
+            for (int i = 0; i < values.length; i++) {
+                running += group.getValue()[i];
+                values[i] = running;
+            }
+            series.put(group.getKey(), values);
+        }
+        return new TimeSeries(dates, series);
+    }
+
+    private void runPartitions(List<Range> ranges, int partitions) {
+        AtomicInteger nextRange = new AtomicInteger();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 1; i < partitions; i++) {
+            futures.add(SHARED_EXECUTOR.submit(new Partition(ranges, nextRange)));
+        }
+
+        new Partition(ranges, nextRange).call();
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new LookbackException(exception);
+        } catch (ExecutionException exception) {
+            throw PageFetcher.unwrap(exception);
+        }
+    }
+
+    /**
+     * @return the index of the first date at or after millis, or the number of dates
+     */
+    private int firstDateFrom(long millis) {
+        int index = Arrays.binarySearch(dateMillis, millis);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * A range of rows and their difference arrays, one per group.
+     */
+    private class Range {
+
+        Rows rows;
+        int from;
+        int to;
+        Map<Object, Integer> groups = new LinkedHashMap<Object, Integer>();
+        List<double[]> differences = new ArrayList<double[]>();
+
+        Range(Rows rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        void accumulate() {
+            for (int row = from; row < to; row++) {
+                int first = firstDateFrom(rows.getValidFrom(row));
+                int end = firstDateFrom(rows.getValidTo(row));
+                if (first >= end) {
+                    continue;
+                }
+                double measure = sumField == null ? 1 : rows.getMeasure(row);
+                double[] groupDifferences = getDifferences(groupField == null ? null : rows.getGroup(row));
+                groupDifferences[first] += measure;
+                groupDifferences[end] -= measure;
+            }
+        }
+
+        private double[] getDifferences(Object group) {
+            Integer index = groups.get(group);
+            if (index == null) {
+                index = differences.size();
+                groups.put(group, index);
+                differences.add(new double[dates.size() + 1]);
+            }
+            return differences.get(index);
+        }
+    }
+
+    /**
+     * Accumulates the next unclaimed range until there are none left.
+     */
+    private static class Partition implements Callable<Void> {
+
+        List<Range> ranges;
+        AtomicInteger nextRange;
+
+        Partition(List<Range> ranges, AtomicInteger nextRange) {
+            this.ranges = ranges;
+            this.nextRange = nextRange;
+        }
+
+        public Void call() {
+            int index;
+            while ((index = nextRange.getAndIncrement()) < ranges.size()) {
+                ranges.get(index).accumulate();
+            }
+            return null;
+        }
+    }
+
+    private interface Rows {
+
+        int size();
+
+        long getValidFrom(int row);
+
+        long getValidTo(int row);
+
+        Object getGroup(int row);
+
+        double getMeasure(int row);
+    }
+
+    private class MapRows implements Rows {
+
+        List<Map<String, Object>> snapshots;
+
+        MapRows(List<Map<String, Object>> snapshots) {
+            this.snapshots = snapshots;
+        }
+
+        public int size() {
+            return snapshots.size();
+        }
+
+        public long getValidFrom(int row) {
+            return parseTimestamp(snapshots.get(row).get("_ValidFrom"), Long.MIN_VALUE);
+        }
+
+        public long getValidTo(int row) {
+            return parseTimestamp(snapshots.get(row).get("_ValidTo"), Long.MAX_VALUE);
+        }
+
+        public Object getGroup(int row) {
+            return snapshots.get(row).get(groupField);
+        }
+
+        public double getMeasure(int row) {
+            Object value = snapshots.get(row).get(sumField);
+            return value instanceof Number ? ((Number) value).doubleValue() : 0;
+        }
+    }
+
+    private class ColumnarRows implements Rows {
+
+        ColumnarPage page;
+        Column validFrom;
+        Column validTo;
+        Column group;
+        Column measure;
+
+        ColumnarRows(ColumnarPage page) {
+            this.page = page;
+            this.validFrom = page.getColumn("_ValidFrom");
+            this.validTo = page.getColumn("_ValidTo");
+            this.group = groupField == null ? null : page.getColumn(groupField);
+            this.measure = sumField == null ? null : page.getColumn(sumField);
+        }
+
+        public int size() {
+            return page.size();
+        }
+
+        public long getValidFrom(int row) {
+            return readTimestamp(validFrom, row, Long.MIN_VALUE);
+        }
+
+        public long getValidTo(int row) {
+            return readTimestamp(validTo, row, Long.MAX_VALUE);
+        }
+
+        public Object getGroup(int row) {
+            return group == null ? null : group.get(row);
+        }
+
+        public double getMeasure(int row) {
+            if (measure == null || measure.isNull(row)) {
+                return 0;
+            }
+            Column.Type type = measure.getType();
+            if (type == Column.Type.LONG || type == Column.Type.DOUBLE) {
+                return measure.getDouble(row);
+            }
+            Object value = measure.get(row);
+            return value instanceof Number ? ((Number) value).doubleValue() : 0;
+        }
+
+        private long readTimestamp(Column column, int row, long missing) {
+            if (column == null || column.isNull(row)) {
+                return missing;
+            }
+            if (column.getType() == Column.Type.TIMESTAMP) {
+                return column.getLong(row);
+            }
+            return parseTimestamp(column.get(row), missing);
+        }
+    }
+
+    private static long parseTimestamp(Object value, long missing) {
+        if (value == null) {
+            return missing;
+        }
+        long millis = IsoDates.parse(value.toString());
+        if (millis == Long.MIN_VALUE) {
+            throw new LookbackException("Unable to read timestamp " + value);
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,78 @@
+package com.rallydev.lookback;
+
+/**
+ * Watermark objects record how far an incremental sync has read, see LookbackQuery's
+ * syncSince methods. A watermark can be saved between runs with toString and restored
+ * with parse.
+ */
+public class Watermark {
+
+    private String etlDate;
+    private String maxValidFrom;
+
+    /**
+     * @param etlDate - the ETLDate the Lookback API reported when the data was read
+     * @param maxValidFrom - the latest _ValidFrom read, may be null
+     */
+    public Watermark(String etlDate, String maxValidFrom) {
+        if (etlDate == null && maxValidFrom == null) {
+            throw new LookbackException("A watermark needs an ETLDate or _ValidFrom");
+        }
+        this.etlDate = etlDate;
+        this.maxValidFrom = maxValidFrom;
+    }
+
+    /**
+     * Restore a watermark saved with toString.
+     * @param saved
+     * @return Watermark
+     */
+    public static Watermark parse(String saved) {
+        int separator = saved.indexOf(' ');
+        if (separator < 0) {
+            throw new LookbackException("Not a saved watermark: " + saved);
+        }
+        return new Watermark(emptyToNull(saved.substring(0, separator)), emptyToNull(saved.substring(separator + 1)));
+    }
+
+    /**
+     * @return String - the ETLDate the Lookback API reported when the data was read
+     */
+    public String getEtlDate() {
+        return etlDate;
+    }
+
+    /**
+     * @return String - the latest _ValidFrom of any snapshot read
+     */
+    public String getMaxValidFrom() {
+        return maxValidFrom;
+    }
+
+    /**
+     * The Lookback API holds all data up to its ETLDate, so everything created or closed
+     * after the ETLDate is new. Without an ETLDate the latest _ValidFrom is used.
+     */
+    String getCutoff() {
+        return etlDate != null ? etlDate : maxValidFrom;
+    }
+
+    @Override
+    public String toString() {
+        return (etlDate == null ? "" : etlDate) + " " + (maxValidFrom == null ? "" : maxValidFrom);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Watermark && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() == 0 ? null : value;
+    }
+}
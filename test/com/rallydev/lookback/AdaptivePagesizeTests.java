@@ -0,0 +1,153 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class AdaptivePagesizeTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void fastPagesDoubleUpToTheMaximum() throws Exception {
+        start(new StandInLookbackServer(2000));
+        List<LookbackResult> pages = fetchSerially(newQuery()
+                .setPagesize(50)
+                .useAdaptivePagesize(5000, 0, 10, 400));
+
+        assert (50 == pages.get(0).PageSize);
+        assert (100 == pages.get(1).PageSize);
+        assert (200 == pages.get(2).PageSize);
+        assert (400 == pages.get(3).PageSize);
+        assert (400 == pages.get(4).PageSize);
+        assert (2000 == countDistinct(pages));
+    }
+
+    @Test
+    public void columnarPagesShrinkToTheByteBudget() throws Exception {
+        start(new StandInLookbackServer(3000).setExtraFields(20));
+        long budget = 64 * 1024;
+        List<LookbackResult> pages = fetchSerially(newQuery()
+                .setPagesize(1000)
+                .useColumnarResults()
+                .useAdaptivePagesize(0, budget));
+
+        assert (pages.get(1).PageSize < 1000);
+        for (LookbackResult page : pages.subList(1, pages.size() - 1)) {
+            assert (page.getUncompressedBytes() <= budget * 1.1);
+        }
+        int count = 0;
+        for (LookbackResult page : pages) {
+            count += page.Columns.size();
+        }
+        assert (3000 == count);
+    }
+
+    @Test
+    public void widePagesShrinkToTheByteBudget() throws Exception {
+        start(new StandInLookbackServer(3000).setExtraFields(20));
+        long budget = 64 * 1024;
+        List<LookbackResult> pages = fetchSerially(newQuery()
+                .setPagesize(1000)
+                .useAdaptivePagesize(0, budget));
+
+        assert (pages.get(0).getUncompressedBytes() > budget * 2);
+        for (LookbackResult page : pages.subList(1, pages.size() - 1)) {
+            assert (page.getUncompressedBytes() <= budget * 1.1);
+            assert (page.getUncompressedBytes() >= budget / 2);
+        }
+        assert (3000 == countDistinct(pages));
+    }
+
+    @Test
+    public void slowPagesShrinkTowardTheTargetLatency() throws Exception {
+        start(new StandInLookbackServer(1000).setLatency(200));
+        LookbackResult first = newQuery()
+                .setPagesize(400)
+                .useAdaptivePagesize(100, 0, 10, 1000)
+                .execute();
+        LookbackResult second = api.getQueryForNextPage(first).execute();
+
+        assert (second.PageSize <= 200);
+        assert (second.StartIndex == 400);
+    }
+
+    @Test
+    public void serverLimitsCapFollowingPagesWithoutSkipping() throws Exception {
+        start(new StandInLookbackServer(1000).setMaxPagesize(150));
+        List<LookbackResult> pages = fetchSerially(newQuery()
+                .setPagesize(100)
+                .useAdaptivePagesize(5000, 0));
+
+        assert (100 == pages.get(0).PageSize);
+        assert (150 == pages.get(1).PageSize);
+        for (LookbackResult page : pages.subList(2, pages.size())) {
+            assert (150 == page.PageSize);
+            assert (page.Warnings.isEmpty());
+        }
+        assert (1000 == countDistinct(pages));
+    }
+
+    @Test
+    public void fetchAllSizesItsPagesFromTheFirst() throws Exception {
+        start(new StandInLookbackServer(1000));
+        List<LookbackResult> pages = newQuery()
+                .setPagesize(100)
+                .useAdaptivePagesize(5000, 0, 10, 300)
+                .fetchAll(4);
+
+        assert (100 == pages.get(0).PageSize);
+        assert (200 == pages.get(1).PageSize);
+        assert (200 == pages.get(1).StartIndex - pages.get(0).StartIndex + 100);
+        assert (6 == pages.size());
+        assert (1000 == countDistinct(pages));
+    }
+
+    @Test(expected = LookbackException.class)
+    public void boundsMustBeOrdered() throws Exception {
+        start(new StandInLookbackServer(0));
+        newQuery().useAdaptivePagesize(100, 0, 500, 100);
+    }
+
+    private void start(StandInLookbackServer standIn) throws Exception {
+        server = standIn.start();
+        api = server.newApi();
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+
+    private List<LookbackResult> fetchSerially(LookbackQuery query) {
+        List<LookbackResult> pages = new ArrayList<LookbackResult>();
+        LookbackResult page = query.execute();
+        pages.add(page);
+        while (page.hasMorePages()) {
+            page = api.getQueryForNextPage(page).execute();
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    private int countDistinct(List<LookbackResult> pages) {
+        Set<String> seen = new HashSet<String>();
+        for (LookbackResult page : pages) {
+            for (Map<String, Object> snapshot : page.Results) {
+                assert (seen.add(snapshot.get("ObjectID") + " " + snapshot.get("_ValidFrom")));
+            }
+        }
+        return seen.size();
+    }
+}
@@ -0,0 +1,84 @@
+package com.rallydev.lookback;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncQueryTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(50).setLatency(200).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void queriesRunConcurrently() throws Exception {
+        api.newSnapshotQuery().addFindClause("Project", 3180942436L).execute();
+        List<ListenableFuture<LookbackResult>> futures = new ArrayList<ListenableFuture<LookbackResult>>();
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            futures.add(api.newSnapshotQuery().addFindClause("Project", 3180942436L).setStart(i).executeAsync());
+        }
+
+        List<LookbackResult> results = Futures.allAsList(futures).get();
+        assert (System.currentTimeMillis() - started < 10 * 200 / 2);
+        assert (10 == results.size());
+        assert (41 == results.get(9).Results.size());
+    }
+
+    @Test
+    public void callbacksRunOnSuppliedExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setNameFormat("supplied-%d").build());
+        api.setExecutor(executor);
+        final AtomicReference<String> thread = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        ListenableFuture<LookbackResult> future = api.newSnapshotQuery().addFindClause("Project", 3180942436L).executeAsync();
+        Futures.addCallback(future, new FutureCallback<LookbackResult>() {
+            public void onSuccess(LookbackResult result) {
+                thread.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+
+            public void onFailure(Throwable failure) {
+                done.countDown();
+            }
+        });
+
+        assert (done.await(5, TimeUnit.SECONDS));
+        assert (thread.get().startsWith("supplied-"));
+        api.close();
+        assert (!executor.isShutdown());
+        executor.shutdown();
+    }
+
+    @Test
+    public void failuresCompleteTheFuture() throws Exception {
+        api.setCredentials(null, null);
+        try {
+            api.newSnapshotQuery().addFindClause("Project", 3180942436L).executeAsync().get();
+            assert (false);
+        } catch (ExecutionException exception) {
+            assert (exception.getCause() instanceof LookbackException);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+public class ChunkedQueryTests {
+
+    static final long FIRST_OBJECT_ID = 5103028089L;
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(400).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void chunksCoverEveryValueOnceInEqualSizes() {
+        List<LookbackQuery> chunks = newQuery(objectIds(0, 101)).chunkInClauses(50).getChunkQueries();
+
+        assert (3 == chunks.size());
+        Set<Object> values = new HashSet<Object>();
+        for (LookbackQuery chunk : chunks) {
+            List<?> in = getInList(chunk);
+            assert (in.size() == 34 || in.size() == 33);
+            values.addAll(in);
+            assert (3180942436L == (Long) chunk.find.get("Project"));
+        }
+        assert (101 == values.size());
+    }
+
+    @Test
+    public void chunksAreMergedIntoOneIterator() {
+        List<Object> ids = objectIds(0, 150);
+        ids.addAll(objectIds(0, 20));
+        ChunkedQuery chunked = newQuery(ids).setPagesize(40).chunkInClauses(30);
+
+        Set<Object> seen = new HashSet<Object>();
+        SnapshotIterator snapshots = chunked.iterateAll(2);
+        while (snapshots.hasNext()) {
+            Map<String, Object> snapshot = snapshots.next();
+            assert (seen.add(snapshot.get("ObjectID") + " " + snapshot.get("_ValidFrom")));
+        }
+        assert ("ObjectID".equals(chunked.getChunkedField()));
+        assert (5 == chunked.getChunkQueries().size());
+        assert (400 == seen.size());
+    }
+
+    @Test
+    public void shortInListsAreLeftWhole() {
+        ChunkedQuery chunked = newQuery(objectIds(0, 100)).chunkInClauses();
+
+        assert (null == chunked.getChunkedField());
+        assert (1 == chunked.getChunkQueries().size());
+        assert (100 == getInList(chunked.getChunkQueries().get(0)).size());
+    }
+
+    @Test
+    public void overlappingQueriesCanBeMergedDistinctly() {
+        LookbackQuery query = newQuery(objectIds(0, 50)).setPagesize(30);
+        List<LookbackQuery> overlapping = Arrays.asList(query, query.copyAtStart(0), query.copyAtStart(100));
+
+        int distinct = count(new SnapshotIterator(api, overlapping, 2, 2, true));
+        int all = count(new SnapshotIterator(api, overlapping, 2, 2, false));
+
+        assert (200 == distinct);
+        assert (500 == all);
+    }
+
+    @Test
+    public void distinctIterationLeavesTheChunkQueriesAlone() {
+        ChunkedQuery chunked = newQuery(objectIds(0, 60))
+                .requireFields("Project")
+                .chunkInClauses(20);
+
+        assert (240 == count(chunked.iterateAll(3, true)));
+        for (LookbackQuery chunk : chunked.getChunkQueries()) {
+            assert (Collections.singleton("Project").equals(chunk.fields));
+        }
+    }
+
+    private LookbackQuery newQuery(List<Object> objectIds) {
+        Map<String, Object> in = new HashMap<String, Object>();
+        in.put("$in", objectIds);
+        return api.newSnapshotQuery()
+                .addFindClause("Project", 3180942436L)
+                .addFindClause("ObjectID", in);
+    }
+
+    private static List<Object> objectIds(int from, int to) {
+        List<Object> ids = new ArrayList<Object>();
+        for (int i = from; i < to; i++) {
+            ids.add(FIRST_OBJECT_ID + i);
+        }
+        return ids;
+    }
+
+    private static List<?> getInList(LookbackQuery chunk) {
+        return (List<?>) ((Map<?, ?>) chunk.find.get("ObjectID")).get("$in");
+    }
+
+    private static int count(SnapshotIterator snapshots) {
+        int count = 0;
+        while (snapshots.hasNext()) {
+            snapshots.next();
+            count++;
+        }
+        return count;
+    }
+}
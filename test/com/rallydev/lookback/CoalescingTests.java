@@ -0,0 +1,112 @@
+package com.rallydev.lookback;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+public class CoalescingTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+    QueryMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(200).setLatency(300).start();
+        metrics = new QueryMetrics();
+        api = server.newApi()
+                .setRequestCoalescing(true)
+                .addQueryListener(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void identicalQueriesInFlightShareOneRequest() throws Exception {
+        List<LookbackQuery> queries = new ArrayList<LookbackQuery>();
+        List<ListenableFuture<LookbackResult>> futures = new ArrayList<ListenableFuture<LookbackResult>>();
+        for (int i = 0; i < 8; i++) {
+            LookbackQuery query = newQuery();
+            queries.add(query);
+            futures.add(query.executeAsync());
+        }
+
+        Set<LookbackResult> results = new HashSet<LookbackResult>();
+        for (int i = 0; i < futures.size(); i++) {
+            LookbackResult result = futures.get(i).get();
+            assert (200 == result.Results.size());
+            assert (result.Results.equals(futures.get(0).get().Results));
+            assert (api.getQueryForNextPage(result) != null);
+            results.add(result);
+        }
+        assert (8 == results.size());
+        assert (1 == server.requestCount.get());
+        assert (7 == metrics.getCoalescedCount());
+        assert (8 == metrics.getQueryCount());
+    }
+
+    @Test
+    public void rowAndColumnarQueriesShareTheBody() throws Exception {
+        ListenableFuture<LookbackResult> rows = newQuery().executeAsync();
+        ListenableFuture<LookbackResult> columns = newQuery().useColumnarResults().executeAsync();
+
+        assert (200 == rows.get().Results.size());
+        assert (200 == columns.get().Columns.size());
+        assert (1 == server.requestCount.get());
+    }
+
+    @Test
+    public void differentQueriesAreNotCoalesced() throws Exception {
+        ListenableFuture<LookbackResult> first = newQuery().executeAsync();
+        ListenableFuture<LookbackResult> second = newQuery().setStart(100).executeAsync();
+
+        assert (200 == first.get().Results.size());
+        assert (100 == second.get().Results.size());
+        assert (2 == server.requestCount.get());
+    }
+
+    @Test
+    public void completedQueriesAreNotReused() {
+        newQuery().execute();
+        newQuery().execute();
+
+        assert (2 == server.requestCount.get());
+        assert (0 == metrics.getCoalescedCount());
+    }
+
+    @Test
+    public void failuresAreSharedWithWaitingQueries() throws Exception {
+        server.failNext(1, 503, null);
+        api.setMaxRetries(0);
+        List<ListenableFuture<LookbackResult>> futures = new ArrayList<ListenableFuture<LookbackResult>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(newQuery().executeAsync());
+        }
+
+        for (ListenableFuture<LookbackResult> future : futures) {
+            try {
+                future.get();
+                assert (false);
+            } catch (ExecutionException expected) {
+                assert (expected.getCause() instanceof LookbackException);
+            }
+        }
+        assert (1 == server.requestCount.get());
+        assert (4 == metrics.getFailureCount());
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+}
@@ -0,0 +1,160 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+public class ColumnarPageTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(30).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void columnsArePrimitiveTyped() {
+        LookbackResult result = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .useColumnarResults()
+                .execute();
+
+        ColumnarPage page = result.Columns;
+        assert (0 == result.Results.size());
+        assert (30 == page.size());
+        assert (Column.Type.LONG == page.getColumn("ObjectID").getType());
+        assert (Column.Type.TIMESTAMP == page.getColumn("_ValidFrom").getType());
+        assert (Column.Type.DOUBLE == page.getColumn("PlanEstimate").getType());
+        assert (Column.Type.STRING == page.getColumn("ScheduleState").getType());
+        assert (Column.Type.OBJECT == page.getColumn("_TypeHierarchy").getType());
+        assert (5103028089L + 2 == page.getColumn("ObjectID").getLong(9));
+    }
+
+    @Test
+    public void rowViewMatchesSnapshot() {
+        ColumnarPage page = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .useColumnarResults()
+                .execute()
+                .Columns;
+
+        ColumnarPage.Row row = page.getRow(7);
+        assert (server.buildSnapshot(7).get("_ValidFrom").equals(row.getString("_ValidFrom")));
+        assert (server.buildSnapshot(7).get("ScheduleState").equals(row.getString("ScheduleState")));
+        assert (3.5 == row.getDouble("PlanEstimate"));
+        assert (IsoDates.parse("2013-01-01T00:07:00.000Z") == row.getLong("_ValidFrom"));
+        assert (row.isNull("Missing"));
+        assert (7 == row.toMap().size());
+    }
+
+    @Test
+    public void rowMapsMatchDecodedSnapshots() {
+        Map<String, Object> decoded = api.newSnapshotQuery().addFindClause("Project", 1234).execute().Results.get(7);
+        ColumnarPage page = api.newSnapshotQuery().addFindClause("Project", 1234).useColumnarResults().execute().Columns;
+
+        assert (decoded.equals(page.getRow(7).toMap()));
+        assert (page.getColumn("ObjectID").get(7) instanceof Double);
+
+        api.setNumberPolicy(NumberPolicy.LONG_OR_DOUBLE);
+        page = api.newSnapshotQuery().addFindClause("Project", 1234).useColumnarResults().execute().Columns;
+        assert (5103028089L + 1 == (Long) page.getColumn("ObjectID").get(7));
+    }
+
+    @Test
+    public void explicitNullsAreKeptApartFromMissingFields() throws Exception {
+        String page = "{\"Results\": ["
+                + "{\"ObjectID\": 1, \"Blocked\": null},"
+                + "{\"ObjectID\": 2, \"Blocked\": true, \"Release\": null},"
+                + "{\"ObjectID\": 3}]}";
+        List<Map<String, Object>> decoded = new SnapshotDecoder(new StringReader(page)).readResult().Results;
+        ColumnarPage columns = new SnapshotDecoder(new StringReader(page)).readColumnarResult().Columns;
+
+        for (int row = 0; row < 3; row++) {
+            assert (decoded.get(row).equals(columns.getRow(row).toMap()));
+        }
+        assert (columns.getRow(0).toMap().containsKey("Blocked"));
+        assert (!columns.getColumn("Blocked").isMissing(0));
+        assert (columns.getColumn("Blocked").isMissing(2));
+        assert (columns.getColumn("Release").isMissing(0));
+        assert (!columns.getColumn("Release").isMissing(1));
+        assert (columns.getColumn("Release").isNull(1));
+    }
+
+    @Test
+    public void stringColumnsExposeTheirDictionary() {
+        Column states = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .useColumnarResults()
+                .execute()
+                .Columns.getColumn("ScheduleState");
+
+        assert (4 == states.getDictionary().size());
+        assert (states.getString(5).equals(states.getDictionary().get(states.getCode(5))));
+        assert (states.getCode(1) == states.getCode(5));
+    }
+
+    @Test(expected = LookbackException.class)
+    public void onlyStringColumnsHaveADictionary() {
+        api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .useColumnarResults()
+                .execute()
+                .Columns.getColumn("ObjectID").getDictionary();
+    }
+
+    @Test
+    public void nextPageIsColumnarToo() {
+        LookbackResult result = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(20)
+                .useColumnarResults()
+                .execute();
+
+        LookbackResult next = api.getQueryForNextPage(result).execute();
+        assert (10 == next.Columns.size());
+    }
+
+    @Test
+    public void columnsWidenToFitLaterValues() {
+        ColumnarPageBuilder builder = new ColumnarPageBuilder(NumberPolicy.LONG_OR_DOUBLE);
+        builder.appendNull("Estimate");
+        builder.appendNumber("Owner", "12");
+        builder.endRow();
+        builder.appendNumber("Estimate", "3");
+        builder.appendNumber("Owner", "13");
+        builder.endRow();
+        builder.appendNumber("Estimate", "0.5");
+        builder.appendString("Owner", "someone");
+        builder.endRow();
+        ColumnarPage page = builder.build();
+
+        assert (Column.Type.DOUBLE == page.getColumn("Estimate").getType());
+        assert (page.getColumn("Estimate").isNull(0));
+        assert (3.0 == page.getColumn("Estimate").getDouble(1));
+        assert (Column.Type.OBJECT == page.getColumn("Owner").getType());
+        assert (12L == (Long) page.getColumn("Owner").get(0));
+        assert ("someone".equals(page.getColumn("Owner").get(2)));
+    }
+
+    @Test
+    public void isoDatesRoundTrip() {
+        String date = "2013-02-28T23:59:59.999Z";
+        assert (date.equals(IsoDates.format(IsoDates.parse(date))));
+        assert (0 == IsoDates.parse("1970-01-01T00:00:00Z"));
+        assert ("9999-01-01T00:00:00.000Z".equals(IsoDates.format(IsoDates.parse("9999-01-01T00:00:00.000Z"))));
+        assert (Long.MIN_VALUE == IsoDates.parse("Current"));
+    }
+}
@@ -0,0 +1,105 @@
+package com.rallydev.lookback;
+
+import org.apache.http.entity.BasicHttpEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class CompressionTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(500).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void responsesAreCompressedOnTheWire() {
+        LookbackResult compressed = newQuery().execute();
+        LookbackResult uncompressed = newQuery().useColumnarResults().execute();
+        api.setResponseCompression(false);
+        LookbackResult plain = newQuery().execute();
+
+        assert (500 == compressed.Results.size());
+        assert (compressed.getCompressedBytes() * 5 < compressed.getUncompressedBytes());
+        assert (uncompressed.getUncompressedBytes() == compressed.getUncompressedBytes());
+        assert (plain.getCompressedBytes() == plain.getUncompressedBytes());
+        assert (plain.getUncompressedBytes() == compressed.getUncompressedBytes());
+        assert (plain.Results.equals(compressed.Results));
+    }
+
+    @Test
+    public void streamsRecordSizesAtTheEnd() {
+        SnapshotStream stream = newQuery().openStream();
+        int count = 0;
+        while (stream.hasNext()) {
+            stream.next();
+            count++;
+        }
+        stream.close();
+
+        assert (500 == count);
+        assert (stream.getResult().getCompressedBytes() > 0);
+        assert (stream.getResult().getCompressedBytes() < stream.getResult().getUncompressedBytes());
+    }
+
+    @Test
+    public void largeRequestsAreGzipped() {
+        List<Long> objectIds = new ArrayList<Long>();
+        for (long i = 0; i < 2000; i++) {
+            objectIds.add(5103028089L + i);
+        }
+        api.setRequestCompression(1024);
+
+        newQuery().addFindClause("ObjectID", Collections.singletonMap("$in", objectIds)).execute();
+        newQuery().execute();
+
+        assert (2 == server.requestCount.get());
+        assert (1 == server.compressedRequestCount.get());
+    }
+
+    @Test
+    public void rawAndZlibDeflateAreBothDecoded() throws Exception {
+        byte[] json = "{\"Results\": [{\"ObjectID\": 12}]}".getBytes("UTF-8");
+        for (boolean raw : new boolean[] {true, false}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+            out.write(json);
+            out.close();
+
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream(compressed.toByteArray()));
+            entity.setContentEncoding("deflate");
+            ResponseBody body = new ResponseBody(entity);
+
+            byte[] decoded = new byte[json.length + 1];
+            int length = 0;
+            for (int count; (count = body.getContent().read(decoded, length, decoded.length - length)) > 0; ) {
+                length += count;
+            }
+            assert (json.length == length);
+            assert (new String(json, "UTF-8").equals(new String(decoded, 0, length, "UTF-8")));
+        }
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+}
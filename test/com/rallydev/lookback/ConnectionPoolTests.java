@@ -0,0 +1,69 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(50).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void connectionIsReusedAcrossPages() {
+        LookbackResult result = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(10)
+                .execute();
+
+        while (result.hasMorePages()) {
+            result = api.getQueryForNextPage(result).execute();
+        }
+
+        assert (5 == server.requestCount.get());
+        assert (1 == api.connectionPool.getConnectionsInPool());
+    }
+
+    @Test
+    public void apiCanBeUsedAfterClose() {
+        api.newSnapshotQuery().addFindClause("Project", 1234).execute();
+        api.close();
+        assert (0 == api.connectionPool.getConnectionsInPool());
+
+        LookbackResult result = api.newSnapshotQuery().addFindClause("Project", 1234).execute();
+        assert (50 == result.Results.size());
+    }
+
+    @Test
+    public void clientIsSharedAndIdleConnectionsAreSwept() throws Exception {
+        api.newSnapshotQuery().addFindClause("Project", 1234).execute();
+        assert (api.connectionPool.getClient() == api.connectionPool.getClient());
+        assert (1 == api.connectionPool.getConnectionsInPool());
+
+        api.setConnectionIdleTimeout(10);
+        Thread.sleep(50);
+        api.connectionPool.getClient();
+
+        assert (0 == api.connectionPool.getConnectionsInPool());
+    }
+
+    @Test
+    public void poolLimitsAreConfigurable() {
+        api.setMaxConnections(4).setMaxConnectionsPerRoute(2);
+
+        assert (4 == api.connectionPool.maxTotal);
+        assert (2 == api.connectionPool.maxPerRoute);
+    }
+}
@@ -0,0 +1,80 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class IncrementalSyncTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(38).start();
+        server.etlDate = "2013-01-01T00:37:30.000Z";
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void firstSyncReadsEverything() {
+        SyncResult result = newQuery().syncSince(null);
+
+        assert (38 == result.getSnapshots().size());
+        assert ("2013-01-01T00:37:30.000Z".equals(result.getWatermark().getEtlDate()));
+        assert ("2013-01-01T00:37:00.000Z".equals(result.getWatermark().getMaxValidFrom()));
+    }
+
+    @Test
+    public void laterSyncReadsNewAndClosedSnapshots() {
+        Watermark watermark = newQuery().syncSince(null).getWatermark();
+        server.totalResults = 60;
+        server.etlDate = "2013-01-01T00:59:30.000Z";
+
+        SyncResult result = newQuery().syncSince(watermark);
+
+        Set<String> validFrom = new HashSet<String>();
+        for (Map<String, Object> snapshot : result.getSnapshots()) {
+            validFrom.add((String) snapshot.get("_ValidFrom"));
+        }
+        assert (23 == result.getSnapshots().size());
+        assert (validFrom.contains("2013-01-01T00:37:00.000Z"));
+        assert (validFrom.contains("2013-01-01T00:38:00.000Z"));
+        assert ("2013-01-01T00:59:00.000Z".equals(result.getWatermark().getMaxValidFrom()));
+    }
+
+    @Test
+    public void unchangedDataSyncsNothing() {
+        Watermark watermark = newQuery().syncSince(null).getWatermark();
+
+        SyncResult result = newQuery().syncSince(watermark);
+
+        assert (result.getSnapshots().isEmpty());
+        assert (watermark.equals(result.getWatermark()));
+    }
+
+    @Test
+    public void watermarkSurvivesSaving() {
+        Watermark watermark = new Watermark("2013-03-01T12:00:00.000Z", "2013-02-28T09:15:00.000Z");
+        assert (watermark.equals(Watermark.parse(watermark.toString())));
+
+        Watermark etlOnly = Watermark.parse(new Watermark("2013-03-01T12:00:00.000Z", null).toString());
+        assert (etlOnly.getMaxValidFrom() == null);
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery()
+                .addFindClause("Project", 3180942436L)
+                .setPagesize(10);
+    }
+}
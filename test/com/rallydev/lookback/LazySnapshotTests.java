@@ -0,0 +1,106 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Map;
+
+public class LazySnapshotTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(300).setExtraFields(8).start();
+        api = server.newApi().setNumberPolicy(NumberPolicy.LONG_OR_DOUBLE);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void lazyPagesMatchDecodedPages() {
+        LookbackResult decoded = newQuery().execute();
+        LookbackResult lazy = newQuery().useLazySnapshots().execute();
+
+        assert (lazy.Results.get(0) instanceof LazySnapshot);
+        assert (decoded.Results.equals(lazy.Results));
+        assert (lazy.Results.equals(decoded.Results));
+        assert (decoded.TotalResultCount == lazy.TotalResultCount);
+        assert (decoded.ETLDate.equals(lazy.ETLDate));
+        assert (decoded.Timings.equals(lazy.Timings));
+        assert (decoded.ThreadStats.equals(lazy.ThreadStats));
+        assert (lazy.Errors.isEmpty());
+    }
+
+    @Test
+    public void onlyTheFieldsReadAreDecoded() {
+        Map<String, Object> decoded = newQuery().execute().Results.get(5);
+        LazySnapshot snapshot = (LazySnapshot) newQuery().useLazySnapshots().execute().Results.get(5);
+
+        assert (decoded.size() == snapshot.size());
+        assert (0 == snapshot.getDecodedCount());
+        assert ("In-Progress".equals(snapshot.get("ScheduleState")));
+        assert (snapshot.containsKey("_TypeHierarchy"));
+        assert (!snapshot.containsKey("Missing"));
+        assert (null == snapshot.get("Missing"));
+        assert (1 == snapshot.getDecodedCount());
+        assert (snapshot.keySet().contains("PlanEstimate"));
+        assert (1 == snapshot.getDecodedCount());
+        assert (5103028090L == (Long) snapshot.get("ObjectID"));
+        assert (2 == snapshot.getDecodedCount());
+    }
+
+    @Test
+    public void followingPagesStayLazy() {
+        SnapshotIterator snapshots = newQuery().setPagesize(100).useLazySnapshots().iterateAll();
+        int count = 0;
+        while (snapshots.hasNext()) {
+            assert (snapshots.next() instanceof LazySnapshot);
+            count++;
+        }
+        assert (300 == count);
+    }
+
+    @Test
+    public void escapesNumbersAndNestedValuesAreDecoded() throws Exception {
+        String json = "{ \"StartIndex\" : 0, \"Warnings\": [\"a \\\"quoted\\\" warning\"], \"GeneratedQuery\": null,\n" +
+                "  \"Results\": [ {\"Na\\u006de\": \"caf\u00e9 \\u00e9\\n\\t\\\\\", \"\u00c9tat\": \"ok\", \"Big\": 9007199254740993,\n" +
+                "    \"Fraction\": -2.5e-3, \"Yes\": true, \"No\": false, \"Nothing\": null,\n" +
+                "    \"Nested\": {\"List\": [1, \"}]\", {\"Deep\": []}]}, \"Empty\": {}}, {} ],\n" +
+                "  \"TotalResultCount\": 2 }";
+        LookbackResult lazy = LazyPageDecoder.decode(json.getBytes("UTF-8"), NumberPolicy.LONG_OR_DOUBLE);
+        LookbackResult decoded = new SnapshotDecoder(new StringReader(json), NumberPolicy.LONG_OR_DOUBLE).readResult();
+
+        assert (2 == lazy.TotalResultCount);
+        assert (decoded.Warnings.equals(lazy.Warnings));
+        Map<String, Object> snapshot = lazy.Results.get(0);
+        assert ("caf\u00e9 \u00e9\n\t\\".equals(snapshot.get("Name")));
+        assert ("ok".equals(snapshot.get("\u00c9tat")));
+        assert (9007199254740993L == (Long) snapshot.get("Big"));
+        assert (-2.5e-3 == (Double) snapshot.get("Fraction"));
+        assert (decoded.Results.equals(lazy.Results));
+        assert (lazy.Results.get(1).isEmpty());
+    }
+
+    @Test(expected = LookbackException.class)
+    public void malformedSnapshotsFailWhenRead() throws Exception {
+        LookbackResult lazy = LazyPageDecoder.decode("{\"Results\": [{\"A\": 1, \"B\": }]}".getBytes("UTF-8"), NumberPolicy.DOUBLE);
+        lazy.Results.get(0).get("A");
+    }
+
+    @Test(expected = LookbackException.class)
+    public void lazySnapshotsCannotBeColumnar() {
+        newQuery().useColumnarResults().useLazySnapshots();
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+}
@@ -0,0 +1,120 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+public class LocalQueryTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+    List<Map<String, Object>> history;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(100).start();
+        api = server.newApi();
+        history = api.newSnapshotQuery().addFindClause("Project", 3180942436L).execute().Results;
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void localResultMatchesServerForRangeClauses() {
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("_ValidFrom", range("$gte", "2013-01-01T00:20:00.000Z", "$lt", "2013-01-01T01:10:00.000Z"))
+                .setStart(5)
+                .setPagesize(20)
+                .sortBy("_ValidFrom", -1);
+
+        LookbackResult remote = query.execute();
+        LookbackResult local = query.executeLocally(history);
+
+        assert (remote.TotalResultCount == local.TotalResultCount);
+        assert (remote.Results.equals(local.Results));
+        assert (local.hasMorePages());
+        assert (25 == api.getQueryForNextPage(local).executeLocally(history).StartIndex);
+    }
+
+    @Test
+    public void inOrAndArrayClausesAreEvaluated() {
+        Map<String, Object> accepted = Collections.<String, Object>singletonMap("ScheduleState", "Accepted");
+        Map<String, Object> bigEstimate = Collections.<String, Object>singletonMap("PlanEstimate", range("$gt", 2, null, null));
+
+        LookbackResult result = api.newSnapshotQuery()
+                .addFindClause("ObjectID", Collections.singletonMap("$in", Arrays.asList(5103028089L, new BigInteger("5103028090"), 12)))
+                .addFindClause("_TypeHierarchy", -51038)
+                .addFindClause("$or", Arrays.asList(accepted, bigEstimate))
+                .requireFields("ObjectID", "ScheduleState")
+                .executeLocally(history);
+
+        assert (4 == result.TotalResultCount);
+        assert (Arrays.asList("ObjectID", "ScheduleState").containsAll(result.Results.get(0).keySet()));
+        assert ("Accepted".equals(result.Results.get(0).get("ScheduleState")));
+    }
+
+    @Test
+    public void negatedAndExistenceClausesAreEvaluated() {
+        Map<String, Object> find = new HashMap<String, Object>();
+        find.put("ScheduleState", Collections.singletonMap("$nin", Arrays.asList("Defined", "Accepted")));
+        find.put("_TypeHierarchy", Collections.singletonMap("$ne", "Defect"));
+        find.put("Blocked", Collections.singletonMap("$exists", false));
+
+        assert (50 == countMatching(find));
+    }
+
+    @Test(expected = LookbackException.class)
+    public void unsupportedOperatorsAreRejected() {
+        api.newSnapshotQuery()
+                .addFindClause("Name", Collections.singletonMap("$regex", "^A"))
+                .executeLocally(history);
+    }
+
+    @Test
+    public void listsMatchWholeArrays() {
+        Map<String, Object> whole = new HashMap<String, Object>();
+        whole.put("_TypeHierarchy", Arrays.asList(-51001, -51002, -51038, "HierarchicalRequirement"));
+        Map<String, Object> partial = new HashMap<String, Object>();
+        partial.put("_TypeHierarchy", Arrays.asList(-51001, -51002));
+        Map<String, Object> notWhole = new HashMap<String, Object>();
+        notWhole.put("_TypeHierarchy", Collections.singletonMap("$ne", whole.get("_TypeHierarchy")));
+
+        assert (100 == countMatching(whole));
+        assert (0 == countMatching(partial));
+        assert (0 == countMatching(notWhole));
+    }
+
+    @Test(expected = LookbackException.class)
+    public void pointInTimeDirectivesAreRejected() {
+        api.newSnapshotQuery()
+                .addFindClause("__At", "2013-01-01T00:30:00.000Z")
+                .executeLocally(history);
+    }
+
+    private int countMatching(Map<String, Object> find) {
+        FindPredicate predicate = FindPredicate.compile(find);
+        int count = 0;
+        for (Map<String, Object> snapshot : history) {
+            if (predicate.matches(snapshot)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Map<String, Object> range(String lowOperator, Object low, String highOperator, Object high) {
+        Map<String, Object> range = new HashMap<String, Object>();
+        range.put(lowOperator, low);
+        if (highOperator != null) {
+            range.put(highOperator, high);
+        }
+        return range;
+    }
+}
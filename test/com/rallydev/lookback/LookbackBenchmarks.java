@@ -0,0 +1,126 @@
+package com.rallydev.lookback;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * Benchmarks the toolkit's hot paths against a local StandInLookbackServer: building request
+ * bodies, decoding response pages, filtering a page on one field eagerly and lazily, a single
+ * page end to end, and exporting every page of a multi-page query. Throughput and bytes allocated per operation are reported for each, so
+ * a regression in either shows up before it reaches production.
+ *
+ *      java com.rallydev.lookback.LookbackBenchmarks [pagesize] [extraFields] [latencyMillis] [pages]
+ *
+ * The stand-in serves repeated requests from memory so the client dominates the timings.
+ * Allocation is measured on the benchmarking thread only, for the export benchmark that
+ * excludes the pages decoded by the background fetchers.
+ */
+public class LookbackBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        final int pagesize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int extraFields = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        int pages = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        final StandInLookbackServer server = new StandInLookbackServer(pagesize * pages)
+                .setExtraFields(extraFields)
+                .setLatency(latencyMillis)
+                .setCachingResponses(true)
+                .start();
+        final LookbackApi api = server.newApi();
+        MicroBenchmark benchmark = new MicroBenchmark();
+        System.out.println(String.format("pagesize %d, %d extra fields, %d ms latency, %d pages",
+                pagesize, extraFields, latencyMillis, pages));
+
+        try {
+            benchmark.measure("request json, new query", new MicroBenchmark.Operation() {
+                public void run() {
+                    newQuery(api, pagesize).getRequestJson();
+                }
+            });
+
+            final LookbackQuery firstPage = newQuery(api, pagesize);
+            final LookbackResult envelope = new LookbackResult();
+            envelope.validate(firstPage);
+            firstPage.getRequestBytes();
+            benchmark.measure("request bytes, next page", new MicroBenchmark.Operation() {
+                public void run() {
+                    api.getQueryForNextPage(envelope).getRequestBytes();
+                }
+            });
+
+            final String page = new Gson().toJson(server.buildPage(0, pagesize));
+            benchmark.measure("decode page, maps", new MicroBenchmark.Operation() {
+                public void run() throws Exception {
+                    new SnapshotDecoder(new StringReader(page)).readResult();
+                }
+            });
+            final SymbolTable symbols = new SymbolTable();
+            benchmark.measure("decode page, maps interned", new MicroBenchmark.Operation() {
+                public void run() throws Exception {
+                    new SnapshotDecoder(new StringReader(page), NumberPolicy.DOUBLE, symbols).readResult();
+                }
+            });
+            benchmark.measure("decode page, columns", new MicroBenchmark.Operation() {
+                public void run() throws Exception {
+                    new SnapshotDecoder(new StringReader(page)).readColumnarResult();
+                }
+            });
+
+            final byte[] pageBytes = page.getBytes("UTF-8");
+            benchmark.measure("filter page on one field, maps", new MicroBenchmark.Operation() {
+                public void run() throws Exception {
+                    SnapshotDecoder decoder = new SnapshotDecoder(
+                            new InputStreamReader(new ByteArrayInputStream(pageBytes), "UTF-8"));
+                    for (Map<String, Object> snapshot : decoder.readResult().Results) {
+                        snapshot.get("ScheduleState");
+                    }
+                }
+            });
+            benchmark.measure("filter page on one field, lazy", new MicroBenchmark.Operation() {
+                public void run() throws Exception {
+                    for (Map<String, Object> snapshot : LazyPageDecoder.decode(pageBytes, NumberPolicy.DOUBLE).Results) {
+                        snapshot.get("ScheduleState");
+                    }
+                }
+            });
+
+            benchmark.measure("single page end to end", new MicroBenchmark.Operation() {
+                public void run() {
+                    newQuery(api, pagesize).execute();
+                }
+            });
+
+            benchmark.measure("export all pages, fetchAll(4)", new MicroBenchmark.Operation() {
+                public void run() {
+                    newQuery(api, pagesize).fetchAll(4);
+                }
+            });
+            benchmark.measure("export all pages, iterateAll(2)", new MicroBenchmark.Operation() {
+                public void run() {
+                    SnapshotIterator snapshots = newQuery(api, pagesize).iterateAll(2);
+                    while (snapshots.hasNext()) {
+                        snapshots.next();
+                    }
+                }
+            });
+        } finally {
+            api.close();
+            server.stop();
+        }
+    }
+
+    private static LookbackQuery newQuery(LookbackApi api, int pagesize) {
+        return api.newSnapshotQuery()
+                .addFindClause("_TypeHierarchy", "HierarchicalRequirement")
+                .addFindClause("Project", 3180942436L)
+                .requireFields("ObjectID", "_ValidFrom", "_ValidTo", "ScheduleState", "PlanEstimate")
+                .sortBy("_ValidFrom")
+                .setPagesize(pagesize);
+    }
+}
@@ -192,4 +192,176 @@ public class LookbackQueryTests {
         assert ("HierarchicalRequirement".equals(storyClause.get("_TypeHierarchy")));
         assert ("Defect".equals(defectClause.get("_TypeHierarchy")));
     }
+
+    @Test
+    public void sortIsEncodedInOrder() {
+        String json = api.newSnapshotQuery()
+                .sortBy("b")
+                .sortBy("a")
+                .sortBy("c")
+                .getRequestJson();
+
+        assert (json.contains("\"sort\":{\"b\":1,\"a\":1,\"c\":1}"));
+    }
+
+    @Test
+    public void keysetNextPageSeeksPastLastSnapshot() {
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .requireFields("ScheduleState")
+                .setPagesize(2)
+                .useKeysetPagination();
+
+        Map<String, Object> last = new HashMap<String, Object>();
+        last.put("_ValidFrom", "2013-01-02T00:00:00.000Z");
+        last.put("ObjectID", 5103028089.0);
+        LookbackResult page = new LookbackResult();
+        page.Results = new ArrayList<Map<String, Object>>();
+        page.Results.add(last);
+        page.validate(query);
+
+        LookbackQuery next = api.getQueryForNextPage(page);
+        Map requestMap = new Gson().fromJson(next.getRequestJson(), Map.class);
+        Map find = (Map) requestMap.get("find");
+        List seek = (List) find.get("$or");
+
+        assert (0 == (Double) requestMap.get("start"));
+        assert (1234 == (Double) find.get("Project"));
+        assert (2 == seek.size());
+        assert (next.getRequestJson().contains("\"$gt\":5103028089"));
+        assert (next.fields.contains("ObjectID"));
+        assert (next.fields.contains("_ValidFrom"));
+    }
+
+    @Test
+    public void keysetNextPageStartsAtZero() {
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(2)
+                .setStart(40)
+                .useKeysetPagination();
+
+        Map<String, Object> last = new HashMap<String, Object>();
+        last.put("_ValidFrom", "2013-01-02T00:00:00.000Z");
+        last.put("ObjectID", 5103028089.0);
+        LookbackResult page = new LookbackResult();
+        page.Results = Collections.singletonList(last);
+        page.validate(query);
+
+        LookbackQuery next = api.getQueryForNextPage(page);
+        Map requestMap = new Gson().fromJson(next.getRequestJson(), Map.class);
+
+        assert (0 == (Double) requestMap.get("start"));
+        assert (40 == (Double) new Gson().fromJson(query.getRequestJson(), Map.class).get("start"));
+    }
+
+    @Test(expected = LookbackException.class)
+    public void keysetCannotSeekPastAnEmptyPage() {
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .useKeysetPagination();
+        LookbackResult page = new LookbackResult();
+        page.Results = new ArrayList<Map<String, Object>>();
+        page.validate(query);
+
+        api.getQueryForNextPage(page);
+    }
+
+    @Test
+    public void keysetSeekIsCombinedWithExistingOr() {
+        List<Map> clauses = new ArrayList<Map>();
+        clauses.add(Collections.singletonMap("Project", 1));
+        clauses.add(Collections.singletonMap("Project", 2));
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("$or", clauses)
+                .useKeysetPagination();
+
+        Map<String, Object> last = new HashMap<String, Object>();
+        last.put("_ValidFrom", "2013-01-02T00:00:00.000Z");
+        last.put("ObjectID", 12.0);
+        LookbackResult page = new LookbackResult();
+        page.Results = Collections.singletonList(last);
+        page.validate(query);
+
+        Map requestMap = new Gson().fromJson(api.getQueryForNextPage(page).getRequestJson(), Map.class);
+        Map find = (Map) requestMap.get("find");
+
+        assert (1 == find.size());
+        assert (2 == ((List) find.get("$and")).size());
+    }
+
+    @Test
+    public void nextPageReusesCompiledRequest() throws Exception {
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .requireFields("ObjectID")
+                .setPagesize(100);
+        String firstJson = query.getRequestJson();
+        LookbackResult page = new LookbackResult();
+        page.validate(query);
+
+        LookbackQuery next = api.getQueryForNextPage(page);
+        Map requestMap = new Gson().fromJson(new String(next.getRequestBytes(), "UTF-8"), Map.class);
+
+        assert (query.compiled == next.compiled);
+        assert (firstJson.replace("\"start\":0", "\"start\":100").equals(next.getRequestJson()));
+        assert (100 == (Double) requestMap.get("start"));
+        assert (100 == (Double) requestMap.get("pagesize"));
+    }
+
+    @Test
+    public void changingAQueryDoesNotChangeItsNextPage() {
+        LookbackQuery query = api.newSnapshotQuery().addFindClause("Project", 1234);
+        query.getRequestJson();
+        LookbackResult page = new LookbackResult();
+        page.validate(query);
+        LookbackQuery next = api.getQueryForNextPage(page);
+
+        query.addFindClause("ScheduleState", "Accepted").sortBy("_ValidFrom");
+        next.requireFields("ObjectID");
+
+        assert (!next.getRequestJson().contains("ScheduleState"));
+        assert (!next.getRequestJson().contains("sort"));
+        assert (query.getRequestJson().contains("ScheduleState"));
+        assert (!query.getRequestJson().contains("fields"));
+    }
+
+    @Test
+    public void changingANestedClauseAfterCompilingDoesNotChangeTheQuery() throws Exception {
+        Map<String, Object> range = new HashMap<String, Object>();
+        range.put("$gte", 1);
+        List<Object> states = new ArrayList<Object>(Arrays.asList("Defined"));
+        LookbackQuery query = api.newSnapshotQuery()
+                .addFindClause("ObjectID", range)
+                .addFindClause("ScheduleState", Collections.singletonMap("$in", states));
+        String json = query.getRequestJson();
+        LookbackResult page = new LookbackResult();
+        page.validate(query);
+        LookbackQuery next = api.getQueryForNextPage(page);
+
+        range.put("$gte", 99);
+        states.add("Accepted");
+        assert (json.equals(query.getRequestJson()));
+        assert (json.equals(new String(query.getRequestBytes(), "UTF-8")));
+
+        query.sortBy("_ValidFrom");
+        next.requireFields("ObjectID");
+        for (LookbackQuery recompiled : Arrays.asList(query, next)) {
+            assert (recompiled.getRequestJson().contains("{\"$gte\":1}"));
+            assert (!recompiled.getRequestJson().contains("Accepted"));
+        }
+    }
+
+    @Test
+    public void propertiesCanFixStartAndPagesize() {
+        String json = api.newSnapshotQuery()
+                .addProperty("start", 7)
+                .addProperty("pagesize", 3)
+                .getRequestJson();
+
+        Map requestMap = new Gson().fromJson(json, Map.class);
+        assert (2 == requestMap.size());
+        assert (7 == (Double) requestMap.get("start"));
+        assert (3 == (Double) requestMap.get("pagesize"));
+    }
 }
@@ -0,0 +1,58 @@
+package com.rallydev.lookback;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * A minimal benchmark harness for the benchmarks in this directory. Each measurement warms
+ * up, then reports throughput and bytes allocated per operation on the measuring thread.
+ */
+public class MicroBenchmark {
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    int warmupMillis = 2000;
+    int measureMillis = 5000;
+
+    public MicroBenchmark setDuration(int warmupMillis, int measureMillis) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+        return this;
+    }
+
+    public void measure(String name, Operation operation) throws Exception {
+        runFor(warmupMillis, operation);
+
+        long allocatedBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        long operations = runFor(measureMillis, operation);
+        long elapsed = System.nanoTime() - begin;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%-40s %12.1f ops/s %12.1f us/op %14.0f B/op %10.1f MB/s alloc",
+                name,
+                operations * 1e9 / elapsed,
+                elapsed / 1e3 / operations,
+                (double) allocated / operations,
+                allocated * 1e9 / elapsed / (1024 * 1024)));
+    }
+
+    private long runFor(int millis, Operation operation) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long operations = 0;
+        do {
+            operation.run();
+            operations++;
+        } while (System.nanoTime() < deadline);
+        return operations;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
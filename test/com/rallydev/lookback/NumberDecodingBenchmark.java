@@ -0,0 +1,33 @@
+package com.rallydev.lookback;
+
+import com.google.gson.Gson;
+
+import java.io.StringReader;
+
+/**
+ * Compares decoding a page of snapshots under each NumberPolicy, and into columns, by
+ * throughput and allocation.
+ *
+ *      java com.rallydev.lookback.NumberDecodingBenchmark [snapshots]
+ */
+public class NumberDecodingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int snapshots = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final String page = new Gson().toJson(new StandInLookbackServer(snapshots).buildPage(0, snapshots));
+
+        MicroBenchmark benchmark = new MicroBenchmark();
+        for (final NumberPolicy policy : NumberPolicy.values()) {
+            benchmark.measure("maps, " + policy, new MicroBenchmark.Operation() {
+                public void run() throws Exception {
+                    new SnapshotDecoder(new StringReader(page), policy).readResult();
+                }
+            });
+        }
+        benchmark.measure("columns", new MicroBenchmark.Operation() {
+            public void run() throws Exception {
+                new SnapshotDecoder(new StringReader(page)).readColumnarResult();
+            }
+        });
+    }
+}
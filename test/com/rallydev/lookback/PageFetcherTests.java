@@ -0,0 +1,97 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PageFetcherTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(95).setLatency(10).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void fetchAllReturnsPagesInOrder() {
+        List<LookbackResult> pages = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(10)
+                .fetchAll(4);
+
+        assert (10 == pages.size());
+        int snapshots = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            assert (i * 10 == pages.get(i).StartIndex);
+            snapshots += pages.get(i).Results.size();
+        }
+        assert (95 == snapshots);
+        assert (10 == server.requestCount.get());
+    }
+
+    @Test
+    public void unorderedFetchReturnsEveryPage() {
+        List<LookbackResult> pages = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(10)
+                .fetchAll(8, false);
+
+        Set<Integer> starts = new HashSet<Integer>();
+        for (LookbackResult page : pages) {
+            starts.add(page.StartIndex);
+        }
+        assert (10 == starts.size());
+        assert (0 == pages.get(0).StartIndex);
+    }
+
+    @Test
+    public void singlePageNeedsNoWorkers() {
+        List<LookbackResult> pages = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .fetchAll(4);
+
+        assert (1 == pages.size());
+        assert (95 == pages.get(0).Results.size());
+    }
+
+    @Test(timeout = 10000)
+    public void fetchAllCompletesOnABusyExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        api.setExecutor(executor);
+        Future<List<LookbackResult>> pages = executor.submit(new Callable<List<LookbackResult>>() {
+            public List<LookbackResult> call() {
+                return api.newSnapshotQuery()
+                        .addFindClause("Project", 1234)
+                        .setPagesize(10)
+                        .fetchAll(4);
+            }
+        });
+
+        assert (10 == pages.get().size());
+        executor.shutdown();
+    }
+
+    @Test(expected = LookbackException.class)
+    public void parallelismMustBePositive() {
+        api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .fetchAll(0);
+    }
+}
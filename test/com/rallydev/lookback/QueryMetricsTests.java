@@ -0,0 +1,164 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueryMetricsTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+    RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(500).setLatency(50).start();
+        listener = new RecordingListener();
+        api = server.newApi().addQueryListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void pagesAreReportedWithTimingsAndSizes() {
+        LookbackResult result = newQuery().execute();
+
+        assert (1 == listener.completed.size());
+        QueryEvent event = listener.completed.get(0);
+        assert (!event.isCached());
+        assert (500 == event.getSnapshotCount());
+        assert (event.getFirstByteNanos() >= 50 * 1000000L);
+        assert (event.getConnectNanos() >= 0);
+        assert (event.getConnectNanos() + event.getFirstByteNanos() <= event.getTotalNanos());
+        assert (event.getDecodeNanos() > 0);
+        assert (result.getCompressedBytes() == event.getCompressedBytes());
+        assert (result.getUncompressedBytes() == event.getUncompressedBytes());
+        assert (4 == event.getServerTimings().get("mongoQuery"));
+        assert ("12.5".equals(event.getThreadStats().get("cpuTime")));
+    }
+
+    @Test
+    public void streamsAreReportedOnceReadToTheEnd() {
+        SnapshotStream stream = newQuery().openStream();
+        int count = 0;
+        while (stream.hasNext()) {
+            stream.next();
+            count++;
+        }
+        stream.close();
+
+        assert (1 == listener.completed.size());
+        assert (count == listener.completed.get(0).getSnapshotCount());
+        assert (!listener.completed.get(0).isAborted());
+        assert (stream.getResult().getCompressedBytes() == listener.completed.get(0).getCompressedBytes());
+    }
+
+    @Test
+    public void streamsClosedEarlyAreReportedAsAborted() {
+        SnapshotStream stream = newQuery().openStream();
+        stream.next();
+        stream.next();
+        stream.close();
+        stream.close();
+
+        assert (1 == listener.completed.size());
+        assert (0 == listener.failed.size());
+        QueryEvent event = listener.completed.get(0);
+        assert (event.isAborted());
+        assert (2 == event.getSnapshotCount());
+        assert (event.getUncompressedBytes() > 0);
+        assert (!stream.hasNext());
+    }
+
+    @Test
+    public void cacheHitsAreReportedAsCached() {
+        api.setResponseCache(new LruResponseCache(1024 * 1024));
+        newQuery().execute();
+        newQuery().execute();
+
+        QueryEvent hit = listener.completed.get(listener.completed.size() - 1);
+        assert (hit.isCached());
+        assert (500 == hit.getSnapshotCount());
+        assert (0 == hit.getCompressedBytes());
+    }
+
+    @Test
+    public void failuresAreReportedAndStillThrown() throws Exception {
+        server.stop();
+        api.setMaxRetries(1).setRetryBackoff(10, 10);
+        try {
+            newQuery().execute();
+            assert (false);
+        } catch (LookbackException expected) {
+        }
+        assert (0 == listener.completed.size());
+        assert (1 == listener.failed.size());
+        assert (1 == listener.failed.get(0).getRetryCount());
+        server = new StandInLookbackServer(0).start();
+    }
+
+    @Test
+    public void metricsAreReadableThroughJmx() throws Exception {
+        QueryMetrics metrics = new QueryMetrics();
+        api.removeQueryListener(listener).addQueryListener(metrics);
+        newQuery().execute();
+        newQuery().execute();
+
+        ObjectName name = metrics.registerMBean("QueryMetricsTests");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assert (2L == (Long) mBeanServer.getAttribute(name, "QueryCount"));
+            assert (1000L == (Long) mBeanServer.getAttribute(name, "SnapshotCount"));
+            assert ((Double) mBeanServer.getAttribute(name, "MedianMillis") >= 50);
+        } finally {
+            mBeanServer.unregisterMBean(name);
+        }
+        assert (2 == metrics.getFirstByteTimes().getCount());
+        assert (4 == metrics.getServerTimes().getPercentileMillis(50));
+        assert (0 == listener.completed.size());
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinBucketResolution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * 1000000L);
+        }
+
+        assert (1000 == histogram.getCount());
+        assert (Math.abs(histogram.getMeanMillis() - 500.5) < 0.01);
+        assert (1000 == histogram.getMaxMillis());
+        assert (Math.abs(histogram.getPercentileMillis(50) - 500) <= 500 * 0.25);
+        assert (Math.abs(histogram.getPercentileMillis(99) - 990) <= 990 * 0.25);
+        assert (histogram.getPercentileMillis(100) == 1000);
+        assert (0 == new LatencyHistogram().getPercentileMillis(50));
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+
+    private static class RecordingListener implements QueryListener {
+
+        List<QueryEvent> completed = new ArrayList<QueryEvent>();
+        List<QueryEvent> failed = new ArrayList<QueryEvent>();
+
+        public synchronized void queryCompleted(QueryEvent event) {
+            completed.add(event);
+        }
+
+        public synchronized void queryFailed(QueryEvent event, Exception failure) {
+            failed.add(event);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class ResponseCacheTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+    LruResponseCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(20).start();
+        cache = new LruResponseCache(1024 * 1024);
+        api = server.newApi()
+                .setResponseCache(cache)
+                .setCacheProbeInterval(Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void identicalQueriesAreAnsweredFromCache() {
+        LookbackResult first = newQuery().execute();
+        LookbackResult second = newQuery().execute();
+
+        assert (1 == server.requestCount.get());
+        assert (first != second);
+        assert (20 == second.Results.size());
+        assert (1 == cache.getHitCount());
+        assert (1 == cache.getMissCount());
+    }
+
+    @Test
+    public void sharedCacheIsKeyedOnTheUser() {
+        newQuery().execute();
+        LookbackApi otherUser = server.newApi()
+                .setCredentials("otheruser", "password")
+                .setResponseCache(cache)
+                .setCacheProbeInterval(Long.MAX_VALUE);
+        otherUser.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .requireFields("ObjectID", "_ValidFrom")
+                .execute();
+        otherUser.close();
+
+        assert (2 == server.requestCount.get());
+        assert (0 == cache.getHitCount());
+    }
+
+    @Test
+    public void newerEtlDateInvalidatesCache() {
+        newQuery().execute();
+        server.etlDate = "2013-03-02T12:00:00.000Z";
+        api.refreshResponseCache();
+        newQuery().execute();
+
+        assert (3 == server.requestCount.get());
+        assert (0 == cache.getHitCount());
+    }
+
+    @Test
+    public void concurrentQueriesShareOneProbe() throws Exception {
+        server.setLatency(50);
+        api.setCacheProbeInterval(60 * 1000);
+        List<Callable<LookbackResult>> queries = new ArrayList<Callable<LookbackResult>>();
+        for (int i = 0; i < 8; i++) {
+            final int pagesize = 10 + i;
+            queries.add(new Callable<LookbackResult>() {
+                public LookbackResult call() {
+                    return newQuery().setPagesize(pagesize).execute();
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (Future<LookbackResult> result : executor.invokeAll(queries)) {
+            result.get();
+        }
+        executor.shutdown();
+
+        assert (9 == server.requestCount.get());
+    }
+
+    @Test
+    public void failedProbeDoesNotFailTheQuery() {
+        api.setCacheProbeInterval(60 * 1000);
+        server.failNext(1, 500, null);
+        LookbackResult result = newQuery().execute();
+        newQuery().execute();
+
+        assert (20 == result.Results.size());
+        assert (2 == server.requestCount.get());
+        assert (1 == cache.getHitCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedResponsesAreEvicted() {
+        cache = new LruResponseCache(1);
+        api.setResponseCache(cache);
+        newQuery().execute();
+
+        assert (0 == cache.getSizeInBytes());
+
+        int size = newQuery().execute().Results.size();
+        cache = new LruResponseCache(4000);
+        api.setResponseCache(cache);
+        newQuery().setPagesize(5).execute();
+        newQuery().setPagesize(6).execute();
+        newQuery().setPagesize(7).execute();
+
+        assert (20 == size);
+        assert (cache.getEvictionCount() > 0);
+        assert (cache.getSizeInBytes() <= 4000);
+    }
+
+    @Test
+    public void responsesSurviveOnDisk() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "lookback-cache-" + System.nanoTime());
+        api.setResponseCache(new LruResponseCache(1024 * 1024, directory));
+        newQuery().execute();
+
+        cache = new LruResponseCache(1024 * 1024, directory);
+        api.setResponseCache(cache);
+        LookbackResult result = newQuery().execute();
+
+        assert (1 == server.requestCount.get());
+        assert (1 == cache.getHitCount());
+        assert (20 == result.Results.size());
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .requireFields("ObjectID", "_ValidFrom");
+    }
+}
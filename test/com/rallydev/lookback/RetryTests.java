@@ -0,0 +1,137 @@
+package com.rallydev.lookback;
+
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Date;
+
+public class RetryTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+    QueryMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(50).start();
+        metrics = new QueryMetrics();
+        api = server.newApi()
+                .setRetryBackoff(10, 50)
+                .addQueryListener(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void unavailableResponsesAreRetried() {
+        server.failNext(2, 503, null);
+        LookbackResult result = newQuery().execute();
+
+        assert (50 == result.Results.size());
+        assert (3 == server.requestCount.get());
+        assert (2 == metrics.getRetryCount());
+    }
+
+    @Test
+    public void interruptedThreadsAreNotRetried() {
+        server.failNext(2, 503, null);
+        Thread.currentThread().interrupt();
+        try {
+            newQuery().execute();
+            assert (false);
+        } catch (LookbackException exception) {
+            assert (exception.getMessage().contains("503"));
+        } finally {
+            Thread.interrupted();
+        }
+
+        assert (1 == server.requestCount.get());
+        assert (0 == metrics.getRetryCount());
+    }
+
+    @Test
+    public void retryAfterIsHonoured() {
+        server.failNext(1, 429, "1");
+        api.setRetryBackoff(10, 5000);
+        long start = System.currentTimeMillis();
+        newQuery().execute();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assert (elapsed >= 900);
+        assert (2 == server.requestCount.get());
+    }
+
+    @Test
+    public void retryAfterIsCappedByTheMaximumBackoff() {
+        server.failNext(1, 429, "3600");
+        long start = System.currentTimeMillis();
+        newQuery().execute();
+
+        assert (System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void exhaustedRetriesFailWithTheStatus() {
+        server.failNext(10, 502, null);
+        api.setMaxRetries(2);
+        try {
+            newQuery().execute();
+            assert (false);
+        } catch (LookbackException expected) {
+            assert (expected.getMessage().contains("502"));
+        }
+        assert (3 == server.requestCount.get());
+        assert (1 == metrics.getFailureCount());
+    }
+
+    @Test
+    public void rateLimitIsSharedAcrossQueries() {
+        api.setRateLimit(20);
+        long start = System.currentTimeMillis();
+        newQuery().fetchAll(4);
+        for (int i = 0; i < 20; i++) {
+            newQuery().execute();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        assert (21 == server.requestCount.get());
+        assert (elapsed >= 800);
+    }
+
+    @Test
+    public void retryAfterIsReadAsSecondsOrDate() {
+        assert (120000 == RequestThrottle.parseRetryAfter(new BasicHeader("Retry-After", "120")));
+        String inAMinute = DateUtils.formatDate(new Date(System.currentTimeMillis() + 60000));
+        long delay = RequestThrottle.parseRetryAfter(new BasicHeader("Retry-After", inAMinute));
+        assert (delay > 55000 && delay <= 60000);
+        assert (0 == RequestThrottle.parseRetryAfter(new BasicHeader("Retry-After", "Thu, 01 Jan 1970 00:00:00 GMT")));
+        assert (-1 == RequestThrottle.parseRetryAfter(new BasicHeader("Retry-After", "soon")));
+        assert (-1 == RequestThrottle.parseRetryAfter(null));
+    }
+
+    @Test
+    public void interruptedAndTimedOutIoIsNotRetried() {
+        RequestThrottle throttle = new RequestThrottle();
+
+        assert (throttle.isRetryable(new IOException("Connection reset"), 0));
+        assert (!throttle.isRetryable(new IOException("Connection reset"), 3));
+        assert (!throttle.isRetryable(new InterruptedIOException(), 0));
+        assert (!throttle.isRetryable(new SocketTimeoutException(), 0));
+        assert (!throttle.isRetryable(new UnknownHostException(), 0));
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+}
@@ -0,0 +1,72 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ShardedQueryTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(400).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void shardsAreRoughlyEqualAndCoverEverySnapshot() {
+        List<LookbackQuery> shards = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .shardByValidFrom(4)
+                .getShardQueries();
+
+        assert (4 == shards.size());
+        int total = 0;
+        for (LookbackQuery shard : shards) {
+            int count = shard.setPagesize(1).execute().TotalResultCount;
+            assert (count >= 80 && count <= 120);
+            total += count;
+        }
+        assert (400 == total);
+    }
+
+    @Test
+    public void mergedIteratorReturnsEverySnapshotOnce() {
+        SnapshotIterator snapshots = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(25)
+                .shardByObjectId(3)
+                .iterateAll();
+
+        Set<Object> seen = new HashSet<Object>();
+        while (snapshots.hasNext()) {
+            assert (seen.add(snapshots.next().get("_ValidFrom")));
+        }
+        assert (400 == seen.size());
+    }
+
+    @Test
+    public void smallResultSetsAreNotSplit() throws Exception {
+        server.stop();
+        server = new StandInLookbackServer(2).start();
+        api = server.newApi();
+
+        ShardedQuery sharded = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .shardByValidFrom(4);
+
+        assert (1 == sharded.getShardQueries().size());
+    }
+}
@@ -0,0 +1,76 @@
+package com.rallydev.lookback;
+
+import org.junit.Test;
+
+import java.util.*;
+
+public class SnapshotIntervalIndexTests {
+
+    StandInLookbackServer server = new StandInLookbackServer(500);
+
+    @Test
+    public void validAtMatchesScanForEveryMinute() {
+        List<Map<String, Object>> snapshots = buildSnapshots();
+        SnapshotIntervalIndex index = new SnapshotIntervalIndex(snapshots);
+
+        for (int minute = 0; minute < 520; minute += 7) {
+            String date = String.format("2013-01-01T%02d:%02d:00.000Z", minute / 60, minute % 60);
+            assert (scan(snapshots, date).equals(validFromOf(index.getValidAt(date))));
+        }
+    }
+
+    @Test
+    public void sweepMatchesSingleLookups() {
+        SnapshotIntervalIndex index = new SnapshotIntervalIndex(buildSnapshots());
+        List<String> dates = Arrays.asList("2013-01-01T05:00:00.000Z", "2012-12-31T00:00:00.000Z",
+                "2013-01-01T00:30:30.000Z", "2013-01-01T00:30:30.000Z", "2013-02-01T00:00:00.000Z");
+
+        Map<String, List<Map<String, Object>>> validAt = index.getValidAtEach(dates);
+
+        assert (new ArrayList<String>(validAt.keySet()).equals(Arrays.asList(dates.get(0), dates.get(1), dates.get(2), dates.get(4))));
+        for (String date : dates) {
+            assert (validFromOf(index.getValidAt(date)).equals(validFromOf(validAt.get(date))));
+        }
+        assert (validAt.get("2012-12-31T00:00:00.000Z").isEmpty());
+        assert (125 == validAt.get("2013-02-01T00:00:00.000Z").size());
+    }
+
+    @Test
+    public void snapshotValidFromItsStartUntilItsEnd() {
+        Map<String, Object> snapshot = new HashMap<String, Object>();
+        snapshot.put("_ValidFrom", "2013-01-01T00:00:00.000Z");
+        snapshot.put("_ValidTo", "2013-01-02T00:00:00.000Z");
+        SnapshotIntervalIndex index = new SnapshotIntervalIndex(Collections.singletonList(snapshot));
+
+        assert (1 == index.getValidAt("2013-01-01T00:00:00.000Z").size());
+        assert (0 == index.getValidAt("2013-01-02T00:00:00.000Z").size());
+    }
+
+    private List<Map<String, Object>> buildSnapshots() {
+        List<Map<String, Object>> snapshots = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < server.totalResults; i++) {
+            snapshots.add(server.buildSnapshot(i));
+        }
+        Collections.shuffle(snapshots, new Random(7));
+        return snapshots;
+    }
+
+    private static Set<Object> scan(List<Map<String, Object>> snapshots, String date) {
+        Set<Object> valid = new HashSet<Object>();
+        for (Map<String, Object> snapshot : snapshots) {
+            if (date.compareTo((String) snapshot.get("_ValidFrom")) >= 0 && date.compareTo((String) snapshot.get("_ValidTo")) < 0) {
+                valid.add(snapshot.get("_ValidFrom"));
+            }
+        }
+        return valid;
+    }
+
+    private static Set<Object> validFromOf(List<Map<String, Object>> snapshots) {
+        Set<Object> validFrom = new HashSet<Object>();
+        for (Map<String, Object> snapshot : snapshots) {
+            validFrom.add(snapshot.get("_ValidFrom"));
+        }
+        assert (validFrom.size() == snapshots.size());
+        return validFrom;
+    }
+}
@@ -0,0 +1,106 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class SnapshotIteratorTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(45).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void iteratesEverySnapshotAcrossPages() {
+        SnapshotIterator snapshots = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(10)
+                .iterateAll(2);
+
+        int count = 0;
+        while (snapshots.hasNext()) {
+            Map<String, Object> snapshot = snapshots.next();
+            assert (server.buildSnapshot(count).get("_ValidFrom").equals(snapshot.get("_ValidFrom")));
+            count++;
+        }
+
+        assert (45 == count);
+        assert (5 == server.requestCount.get());
+        assert (40 == snapshots.getCurrentPage().StartIndex);
+    }
+
+    @Test
+    public void iteratesColumnarPagesAsMaps() {
+        SnapshotIterator snapshots = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(10)
+                .useColumnarResults()
+                .iterateAll(2);
+
+        int count = 0;
+        while (snapshots.hasNext()) {
+            Map<String, Object> snapshot = snapshots.next();
+            assert (server.buildSnapshot(count).get("_ValidFrom").equals(snapshot.get("_ValidFrom")));
+            count++;
+        }
+
+        assert (45 == count);
+        assert (snapshots.getCurrentPage().Columns != null);
+    }
+
+    @Test
+    public void closingStopsFetching() throws Exception {
+        server.setLatency(20);
+        SnapshotIterator snapshots = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(1)
+                .iterateAll();
+
+        snapshots.next();
+        snapshots.close();
+        Thread.sleep(100);
+
+        assert (!snapshots.hasNext());
+        assert (server.requestCount.get() < 45);
+    }
+
+    @Test(expected = LookbackException.class)
+    public void failuresAreRethrownToTheConsumer() {
+        SnapshotIterator snapshots = api.setCredentials(null, null)
+                .newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .iterateAll();
+
+        snapshots.hasNext();
+    }
+
+    @Test(timeout = 10000, expected = StackOverflowError.class)
+    public void errorsAreRethrownToTheConsumer() {
+        api.addQueryListener(new QueryListener() {
+            public void queryCompleted(QueryEvent event) {
+                throw new StackOverflowError();
+            }
+
+            public void queryFailed(QueryEvent event, Exception failure) {
+            }
+        });
+        SnapshotIterator snapshots = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .iterateAll();
+
+        snapshots.hasNext();
+    }
+}
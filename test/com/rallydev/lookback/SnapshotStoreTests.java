@@ -0,0 +1,136 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class SnapshotStoreTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+    File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(100).start();
+        api = server.newApi();
+        directory = File.createTempFile("snapshot-store", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void storeIsFilledFromQuery() {
+        SnapshotStore store = new SnapshotStore(directory, 4096);
+        api.newSnapshotQuery().addFindClause("Project", 3180942436L).execute(store);
+
+        List<Map<String, Object>> versions = store.getVersions(5103028089L + 3);
+        assert (100 == store.getSnapshotCount());
+        assert (25 == store.getObjectCount());
+        assert (4 == versions.size());
+        assert (server.buildSnapshot(12).get("_ValidFrom").equals(versions.get(0).get("_ValidFrom")));
+        assert ("Accepted".equals(store.getLatest(5103028089L + 3).get("ScheduleState")));
+        assert (store.getVersions(42).isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void storeSpansSegmentsAndSurvivesReopening() {
+        SnapshotStore store = new SnapshotStore(directory, 4096);
+        for (int i = 0; i < 100; i++) {
+            store.handleSnapshot(server.buildSnapshot(i));
+        }
+        store.close();
+        assert (directory.listFiles().length > 1);
+
+        SnapshotStore reopened = new SnapshotStore(directory, 4096).setNumberPolicy(NumberPolicy.LONG_OR_DOUBLE);
+        reopened.handleSnapshot(server.buildSnapshot(100));
+
+        assert (101 == reopened.getSnapshotCount());
+        assert (5 == reopened.getVersions(5103028089L + 24).size() + reopened.getVersions(5103028089L + 25).size());
+        assert (5103028089L == (Long) reopened.getLatest(5103028089L).get("ObjectID"));
+
+        int count = 0;
+        Iterator<Map<String, Object>> iterator = reopened.iterator();
+        while (iterator.hasNext()) {
+            assert (server.buildSnapshot(count).get("_ValidFrom").equals(iterator.next().get("_ValidFrom")));
+            count++;
+        }
+        assert (101 == count);
+        reopened.close();
+    }
+
+    @Test
+    public void snapshotsRoundTripExactly() {
+        SnapshotStore store = new SnapshotStore(directory, 4096).setNumberPolicy(NumberPolicy.LONG_OR_DOUBLE);
+        Map<String, Object> snapshot = new HashMap<String, Object>();
+        snapshot.put("ObjectID", 5103028089.0);
+        snapshot.put("Project", 3180942436L);
+        snapshot.put("PlanEstimate", 0.5);
+        snapshot.put("Blocked", null);
+        store.handleSnapshot(snapshot);
+
+        Map<String, Object> stored = store.getLatest(5103028089L);
+        assert (snapshot.equals(stored));
+        assert (stored.containsKey("Blocked"));
+        store.close();
+    }
+
+    @Test
+    public void tornRecordsAreTruncatedOnReopening() throws Exception {
+        SnapshotStore store = new SnapshotStore(directory, 4096);
+        for (int i = 0; i < 10; i++) {
+            store.handleSnapshot(server.buildSnapshot(i));
+        }
+        store.close();
+
+        RandomAccessFile segment = new RandomAccessFile(new File(directory, "segment-00000.dat"), "rw");
+        int position = 0;
+        for (int i = 0; i < 9; i++) {
+            segment.seek(position);
+            position += SnapshotStore.HEADER_SIZE + segment.readInt();
+        }
+        segment.seek(position + SnapshotStore.HEADER_SIZE + 10);
+        segment.write('#');
+        segment.close();
+
+        SnapshotStore reopened = new SnapshotStore(directory, 4096);
+        assert (9 == reopened.getSnapshotCount());
+        reopened.handleSnapshot(server.buildSnapshot(9));
+        reopened.close();
+
+        SnapshotStore repaired = new SnapshotStore(directory, 4096);
+        assert (10 == repaired.getSnapshotCount());
+        assert (server.buildSnapshot(9).get("_ValidFrom").equals(repaired.getLatest(5103028089L + 2).get("_ValidFrom")));
+        repaired.close();
+    }
+
+    @Test
+    public void indexGrowsPastInitialCapacity() {
+        SnapshotStore.ObjectIdIndex index = new SnapshotStore.ObjectIdIndex(4);
+        for (long id = 0; id < 5000; id++) {
+            assert (SnapshotStore.NO_OFFSET == index.put(id * 7919, id));
+        }
+        assert (41 == index.put(41 * 7919, 99));
+        assert (99 == index.get(41 * 7919));
+        assert (SnapshotStore.NO_OFFSET == index.get(3));
+        assert (5000 == index.size());
+    }
+}
@@ -0,0 +1,113 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class SnapshotStreamTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(25).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void streamYieldsEverySnapshotOnThePage() {
+        SnapshotStream stream = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .setPagesize(10)
+                .openStream();
+
+        int count = 0;
+        while (stream.hasNext()) {
+            Map<String, Object> snapshot = stream.next();
+            assert (snapshot.containsKey("ObjectID"));
+            count++;
+        }
+        stream.close();
+
+        LookbackResult result = stream.getResult();
+        assert (10 == count);
+        assert (25 == result.TotalResultCount);
+        assert (0 == result.Results.size());
+        assert (result.Timings != null);
+        assert (result.hasMorePages());
+    }
+
+    @Test
+    public void handlerReceivesSnapshotsInOrder() {
+        final List<Object> validFrom = new ArrayList<Object>();
+        LookbackResult result = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .execute(new SnapshotHandler() {
+                    public void handleSnapshot(Map<String, Object> snapshot) {
+                        validFrom.add(snapshot.get("_ValidFrom"));
+                    }
+                });
+
+        assert (25 == validFrom.size());
+        assert (server.buildSnapshot(24).get("_ValidFrom").equals(validFrom.get(24)));
+        assert ("2013-03-01T12:00:00.000Z".equals(result.ETLDate));
+    }
+
+    @Test
+    public void streamCanBeClosedEarly() {
+        SnapshotStream stream = api.newSnapshotQuery()
+                .addFindClause("Project", 1234)
+                .openStream();
+
+        stream.next();
+        stream.close();
+
+        assert (!stream.hasNext());
+        assert (25 == api.newSnapshotQuery().addFindClause("Project", 1234).execute().Results.size());
+    }
+
+    @Test
+    public void decoderReadsEnvelopeAroundResults() throws Exception {
+        String json = "{\"Errors\": [], \"Warnings\": [\"slow\"], \"TotalResultCount\": 2, \"StartIndex\": 0," +
+                "\"PageSize\": 100, \"Results\": [{\"ObjectID\": 12, \"Tags\": [\"a\"]}, {\"ObjectID\": 13, \"Parent\": null}]," +
+                "\"Timings\": {\"total\": 7}}";
+
+        LookbackResult result = new SnapshotDecoder(new StringReader(json)).readResult();
+
+        assert (2 == result.Results.size());
+        assert (12.0 == (Double) result.Results.get(0).get("ObjectID"));
+        assert (result.Results.get(1).containsKey("Parent"));
+        assert (result.hasWarnings());
+        assert (7 == result.Timings.get("total"));
+        assert (!result.hasMorePages());
+    }
+
+    @Test
+    public void integralNumbersCanBeDecodedExactly() throws Exception {
+        String json = "{\"Timings\": {\"total\": 7}, \"Results\": [{\"ObjectID\": 9007199254740993, \"PlanEstimate\": 2.5}]}";
+
+        LookbackResult result = new SnapshotDecoder(new StringReader(json), NumberPolicy.LONG_OR_DOUBLE).readResult();
+
+        assert (9007199254740993L == (Long) result.Results.get(0).get("ObjectID"));
+        assert (2.5 == (Double) result.Results.get(0).get("PlanEstimate"));
+        assert (7 == result.Timings.get("total"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void fractionalTimingsAreRejected() throws Exception {
+        String json = "{\"Timings\": {\"total\": 7.5}, \"Results\": []}";
+        new SnapshotDecoder(new StringReader(json), NumberPolicy.LONG_OR_DOUBLE).readResult();
+    }
+}
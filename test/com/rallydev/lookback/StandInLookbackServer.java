@@ -0,0 +1,337 @@
+package com.rallydev.lookback;
+
+import com.google.common.io.CharStreams;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the Lookback API used by tests and benchmarks. It serves synthetic
+ * snapshot pages honoring the start and pagesize of each request. Each object has four
+ * consecutive versions, each closed by the next. Find clauses on _ValidFrom, _ValidTo and
+ * ObjectID (comparisons, $in, $and and $or) are evaluated, other find clauses are ignored.
+ * Snapshots are ordered by _ValidFrom and ObjectID, descending if the request sorts by
+ * either descending. Responses are compressed when the request accepts gzip or deflate,
+ * and gzipped requests are accepted.
+ */
+public class StandInLookbackServer {
+
+    static final Set<String> FILTERED_FIELDS = new HashSet<String>(Arrays.asList("_ValidFrom", "_ValidTo", "ObjectID"));
+
+    int totalResults;
+    int extraFields;
+    long latencyMillis;
+    int maxPagesize;
+    AtomicInteger failuresRemaining = new AtomicInteger();
+    volatile int failureStatus;
+    volatile String retryAfter;
+    boolean isCachingResponses;
+    Map<String, byte[]> responses = new ConcurrentHashMap<String, byte[]>();
+    volatile String etlDate = "2013-03-01T12:00:00.000Z";
+    AtomicInteger requestCount = new AtomicInteger();
+    AtomicInteger compressedRequestCount = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public StandInLookbackServer(int totalResults) {
+        this.totalResults = totalResults;
+    }
+
+    public StandInLookbackServer setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Add custom fields to every snapshot, cycling through strings, numbers, booleans and
+     * nulls, to give pages a realistic size and field mix.
+     */
+    public StandInLookbackServer setExtraFields(int extraFields) {
+        this.extraFields = extraFields;
+        return this;
+    }
+
+    /**
+     * Answer the next count requests with an error status, and a Retry-After header if
+     * retryAfter isn't null, the way a throttled or restarting server would.
+     */
+    public StandInLookbackServer failNext(int count, int status, String retryAfter) {
+        this.failureStatus = status;
+        this.retryAfter = retryAfter;
+        failuresRemaining.set(count);
+        return this;
+    }
+
+    /**
+     * Serve at most maxPagesize snapshots per page, warning when a request asks for more,
+     * the way the Lookback API limits pages of fields=true queries.
+     */
+    public StandInLookbackServer setMaxPagesize(int maxPagesize) {
+        this.maxPagesize = maxPagesize;
+        return this;
+    }
+
+    /**
+     * Serve repeated requests from memory rather than building and compressing the page
+     * again, so benchmarks measure the client rather than the stand-in.
+     */
+    public StandInLookbackServer setCachingResponses(boolean isCachingResponses) {
+        this.isCachingResponses = isCachingResponses;
+        return this;
+    }
+
+    public StandInLookbackServer start() throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new QueryHandler());
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public LookbackApi newApi() {
+        return new LookbackApi()
+                .setServer(getUrl())
+                .setCredentials("username", "password")
+                .setWorkspace("41529001");
+    }
+
+    Map<String, Object> buildSnapshot(int index) {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("ObjectID", 5103028089L + index / 4);
+        snapshot.put("Project", 3180942436L);
+        snapshot.put("_ValidFrom", buildValidFrom(index));
+        snapshot.put("_ValidTo", index % 4 == 3 || index + 1 >= totalResults ? "9999-01-01T00:00:00.000Z" : buildValidFrom(index + 1));
+        snapshot.put("ScheduleState", new String[] {"Defined", "In-Progress", "Completed", "Accepted"}[index % 4]);
+        snapshot.put("PlanEstimate", (index % 8) / 2.0);
+        snapshot.put("_TypeHierarchy", Arrays.asList(-51001, -51002, -51038, "HierarchicalRequirement"));
+        for (int field = 0; field < extraFields; field++) {
+            String name = "c_Field" + field;
+            switch (field % 4) {
+                case 0:
+                    snapshot.put(name, "Value " + (index + field) % 50);
+                    break;
+                case 1:
+                    snapshot.put(name, (double) ((index * 31 + field) % 1000));
+                    break;
+                case 2:
+                    snapshot.put(name, (index + field) % 2 == 0);
+                    break;
+                default:
+                    snapshot.put(name, null);
+            }
+        }
+        return snapshot;
+    }
+
+    private static String buildValidFrom(int index) {
+        return String.format("2013-01-%02dT%02d:%02d:00.000Z", 1 + index / 1440 % 28, index / 60 % 24, index % 60);
+    }
+
+    Map<String, Object> buildPage(int start, int pagesize) {
+        return buildPage(start, pagesize, null, false);
+    }
+
+    Map<String, Object> buildPage(int start, int pagesize, Map find, boolean descending) {
+        List<Integer> matching = findMatching(find);
+        if (descending) {
+            Collections.reverse(matching);
+        }
+
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (int i = start; i < Math.min(start + pagesize, matching.size()); i++) {
+            results.add(buildSnapshot(matching.get(i)));
+        }
+
+        Map<String, Object> page = new LinkedHashMap<String, Object>();
+        page.put("_rallyAPIMajor", "2");
+        page.put("_rallyAPIMinor", "0");
+        page.put("Errors", new ArrayList<String>());
+        page.put("Warnings", new ArrayList<String>());
+        page.put("TotalResultCount", matching.size());
+        page.put("StartIndex", start);
+        page.put("PageSize", pagesize);
+        page.put("ETLDate", etlDate);
+        page.put("Results", results);
+        page.put("ThreadStats", Collections.singletonMap("cpuTime", "12.5"));
+        page.put("Timings", Collections.singletonMap("mongoQuery", 4));
+        return page;
+    }
+
+    private List<Integer> findMatching(Map find) {
+        boolean filtered = find != null && find.toString().matches(".*(_ValidFrom|_ValidTo|ObjectID).*");
+        List<Integer> matching = new ArrayList<Integer>();
+        for (int i = 0; i < totalResults; i++) {
+            if (!filtered || matches(find, buildSnapshot(i))) {
+                matching.add(i);
+            }
+        }
+        return matching;
+    }
+
+    private boolean matches(Map find, Map<String, Object> snapshot) {
+        for (Object entry : find.entrySet()) {
+            String field = (String) ((Map.Entry) entry).getKey();
+            Object clause = ((Map.Entry) entry).getValue();
+            if ("$and".equals(field) || "$or".equals(field)) {
+                boolean any = false;
+                boolean all = true;
+                for (Object inner : (List) clause) {
+                    boolean match = matches((Map) inner, snapshot);
+                    any |= match;
+                    all &= match;
+                }
+                if ("$and".equals(field) ? !all : !any) {
+                    return false;
+                }
+            } else if (FILTERED_FIELDS.contains(field) && !matchesField(clause, snapshot.get(field))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesField(Object clause, Object value) {
+        if (!(clause instanceof Map)) {
+            return compare(value, clause) == 0;
+        }
+        for (Object entry : ((Map) clause).entrySet()) {
+            String operator = (String) ((Map.Entry) entry).getKey();
+            if ("$in".equals(operator)) {
+                if (!contains((List) ((Map.Entry) entry).getValue(), value)) {
+                    return false;
+                }
+                continue;
+            }
+            int comparison = compare(value, ((Map.Entry) entry).getValue());
+            if ("$lt".equals(operator) && comparison >= 0 || "$lte".equals(operator) && comparison > 0
+                    || "$gt".equals(operator) && comparison <= 0 || "$gte".equals(operator) && comparison < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(List operands, Object value) {
+        for (Object operand : operands) {
+            if (compare(value, operand) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int compare(Object value, Object operand) {
+        if (value instanceof Number) {
+            return Double.compare(((Number) value).doubleValue(), ((Number) operand).doubleValue());
+        }
+        return value.toString().compareTo(operand.toString());
+    }
+
+    private class QueryHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            InputStream requestBody = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                compressedRequestCount.incrementAndGet();
+                requestBody = new GZIPInputStream(requestBody);
+            }
+            String requestJson = CharStreams.toString(new InputStreamReader(requestBody, "UTF-8"));
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            String cacheKey = requestJson + "|" + acceptEncoding + "|" + totalResults + "|" + etlDate + "|" + extraFields;
+
+            sleep(latencyMillis);
+            if (failuresRemaining.getAndDecrement() > 0) {
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                }
+                exchange.sendResponseHeaders(failureStatus, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = isCachingResponses ? responses.get(cacheKey) : null;
+            if (body == null) {
+                body = buildResponse(requestJson, acceptEncoding);
+                if (isCachingResponses) {
+                    responses.put(cacheKey, body);
+                }
+            }
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            } else if (acceptEncoding != null && acceptEncoding.contains("deflate")) {
+                exchange.getResponseHeaders().add("Content-Encoding", "deflate");
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream responseStream = exchange.getResponseBody();
+            responseStream.write(body);
+            responseStream.close();
+        }
+
+        private byte[] buildResponse(String requestJson, String acceptEncoding) throws IOException {
+            Map request = new Gson().fromJson(requestJson, Map.class);
+            int start = ((Number) request.get("start")).intValue();
+            int pagesize = ((Number) request.get("pagesize")).intValue();
+            boolean isLimited = maxPagesize > 0 && pagesize > maxPagesize;
+            if (isLimited) {
+                pagesize = maxPagesize;
+            }
+
+            Map sort = (Map) request.get("sort");
+            boolean descending = sort != null && sort.values().contains(-1.0);
+            Map<String, Object> page = buildPage(start, pagesize, (Map) request.get("find"), descending);
+            if (isLimited) {
+                page.put("Warnings", Collections.singletonList("pagesize limited to " + maxPagesize));
+            }
+            byte[] body = new Gson().toJson(page).getBytes("UTF-8");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                return compress(body, true);
+            } else if (acceptEncoding != null && acceptEncoding.contains("deflate")) {
+                return compress(body, false);
+            }
+            return body;
+        }
+    }
+
+    private static byte[] compress(byte[] body, boolean gzip) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = gzip ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed);
+        out.write(body);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class SymbolTableTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(300).setExtraFields(4).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void repeatedStringsAreTheSameInstance() {
+        String first = new SymbolTable().intern(new String("Accepted"));
+        SymbolTable symbols = new SymbolTable();
+        String stored = symbols.intern(new String("Accepted"));
+
+        assert (stored == symbols.intern(new String("Accepted")));
+        assert (stored == symbols.intern(first));
+        assert (null == symbols.intern(null));
+        assert (2 == symbols.getHitCount());
+        assert (1 == symbols.getMissCount());
+        assert (1 == symbols.size());
+    }
+
+    @Test
+    public void longStringsAreNotStored() {
+        SymbolTable symbols = new SymbolTable(64, 8);
+        String description = new String("A description longer than eight characters");
+
+        assert (description == symbols.intern(description));
+        assert (0 == symbols.size());
+        assert (0 == symbols.getMissCount());
+    }
+
+    @Test
+    public void tableStaysWithinItsCapacity() {
+        SymbolTable symbols = new SymbolTable(100, 32);
+        for (int i = 0; i < 10000; i++) {
+            symbols.intern("value" + i);
+        }
+
+        assert (128 == symbols.getCapacity());
+        assert (symbols.size() <= 128);
+        assert (10000 == symbols.getMissCount());
+
+        symbols.clear();
+        assert (0 == symbols.size());
+        assert (0 == symbols.getMissCount());
+    }
+
+    @Test
+    public void decodedSnapshotsShareNamesAndValues() {
+        List<Map<String, Object>> snapshots = newQuery().execute().Results;
+        assertShared(snapshots);
+        assert (api.getSymbolTable().getHitRate() > 0.5);
+    }
+
+    @Test
+    public void lazySnapshotsShareNamesAndValues() {
+        List<Map<String, Object>> snapshots = newQuery().useLazySnapshots().execute().Results;
+        assertShared(snapshots);
+        assert (api.getSymbolTable().getHitCount() > 0);
+    }
+
+    @Test
+    public void pagesShareTheApisTable() {
+        SymbolTable symbols = new SymbolTable();
+        api.setSymbolTable(symbols);
+        Map<String, Object> first = newQuery().execute().Results.get(0);
+        Map<String, Object> later = newQuery().execute().Results.get(0);
+
+        assert (first.get("ScheduleState") == later.get("ScheduleState"));
+        assert (symbols == api.getSymbolTable());
+    }
+
+    @Test
+    public void interningCanBeTurnedOff() {
+        api.setSymbolTable(null);
+        Map<String, Object> first = newQuery().execute().Results.get(0);
+        Map<String, Object> later = newQuery().execute().Results.get(0);
+
+        assert (first.get("ScheduleState") != later.get("ScheduleState"));
+        assert (first.get("ScheduleState").equals(later.get("ScheduleState")));
+    }
+
+    private void assertShared(List<Map<String, Object>> snapshots) {
+        Map<String, Object> first = snapshots.get(0);
+        Map<String, Object> fifth = snapshots.get(4);
+
+        assert (first.get("ScheduleState").equals(fifth.get("ScheduleState")));
+        assert (first.get("ScheduleState") == fifth.get("ScheduleState"));
+        assert (((List<?>) first.get("_TypeHierarchy")).get(3) == ((List<?>) fifth.get("_TypeHierarchy")).get(3));
+        assert (keyNamed("ScheduleState", first) == keyNamed("ScheduleState", fifth));
+    }
+
+    private static String keyNamed(String name, Map<String, Object> snapshot) {
+        for (String key : snapshot.keySet()) {
+            if (key.equals(name)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private LookbackQuery newQuery() {
+        return api.newSnapshotQuery().addFindClause("Project", 3180942436L);
+    }
+}
@@ -0,0 +1,114 @@
+package com.rallydev.lookback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+public class TimeSeriesAggregatorTests {
+
+    StandInLookbackServer server;
+    LookbackApi api;
+
+    List<String> dates = Arrays.asList("2013-01-01T00:30:00.000Z", "2013-01-01T00:00:00.000Z",
+            "2013-01-01T00:10:30.000Z", "2013-01-01T01:00:00.000Z", "2013-01-03T00:00:00.000Z");
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInLookbackServer(200).start();
+        api = server.newApi();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    @Test
+    public void countsMatchPointInTimeIndex() {
+        List<Map<String, Object>> snapshots = buildSnapshots(200);
+        SnapshotIntervalIndex index = new SnapshotIntervalIndex(snapshots);
+
+        TimeSeries series = new TimeSeriesAggregator(dates).groupBy("ScheduleState").aggregate(snapshots);
+
+        assert ("2013-01-01T00:00:00.000Z".equals(series.getDates().get(0)));
+        for (String date : dates) {
+            Map<Object, Integer> expected = new HashMap<Object, Integer>();
+            for (Map<String, Object> snapshot : index.getValidAt(date)) {
+                Object state = snapshot.get("ScheduleState");
+                expected.put(state, expected.containsKey(state) ? expected.get(state) + 1 : 1);
+            }
+            for (Object state : series.getGroups()) {
+                int count = expected.containsKey(state) ? expected.get(state) : 0;
+                assert (count == series.getValue(state, date));
+            }
+        }
+        assert (50 == series.getValue("Accepted", "2013-01-03T00:00:00.000Z"));
+        assert (0 == series.getValue("Defined", "2013-01-03T00:00:00.000Z"));
+    }
+
+    @Test
+    public void columnarPageGivesSameSeries() {
+        LookbackResult page = api.newSnapshotQuery()
+                .addFindClause("Project", 3180942436L)
+                .setPagesize(200)
+                .useColumnarResults()
+                .execute();
+        TimeSeriesAggregator aggregator = new TimeSeriesAggregator(dates).groupBy("ScheduleState").sum("PlanEstimate");
+
+        TimeSeries fromColumns = aggregator.aggregate(page.Columns);
+        TimeSeries fromMaps = aggregator.aggregate(buildSnapshots(200));
+
+        assert (fromMaps.getGroups().equals(fromColumns.getGroups()));
+        for (Object state : fromMaps.getGroups()) {
+            assert (Arrays.equals(fromMaps.getValues(state), fromColumns.getValues(state)));
+        }
+        assert (25 * 1.5 + 25 * 3.5 == fromColumns.getValue("Accepted", "2013-01-03T00:00:00.000Z"));
+    }
+
+    @Test
+    public void partitionsMergeToSequentialResult() {
+        List<Map<String, Object>> snapshots = buildSnapshots(TimeSeriesAggregator.MIN_PARTITION_SIZE * 3);
+
+        TimeSeries sequential = new TimeSeriesAggregator(dates).groupBy("ScheduleState").setParallelism(1).aggregate(snapshots);
+        TimeSeries parallel = new TimeSeriesAggregator(dates).groupBy("ScheduleState").setParallelism(3).aggregate(snapshots);
+
+        assert (sequential.getGroups().equals(parallel.getGroups()));
+        for (Object state : sequential.getGroups()) {
+            assert (Arrays.equals(sequential.getValues(state), parallel.getValues(state)));
+        }
+    }
+
+    @Test
+    public void columnarPagesMergeIntoOneSeries() {
+        List<ColumnarPage> pages = new ArrayList<ColumnarPage>();
+        for (LookbackResult page : api.newSnapshotQuery()
+                .addFindClause("Project", 3180942436L)
+                .setPagesize(30)
+                .useColumnarResults()
+                .fetchAll(3)) {
+            pages.add(page.Columns);
+        }
+        TimeSeriesAggregator aggregator = new TimeSeriesAggregator(dates).groupBy("ScheduleState").sum("PlanEstimate");
+
+        TimeSeries fromPages = aggregator.aggregatePages(pages);
+        TimeSeries fromMaps = aggregator.aggregate(buildSnapshots(200));
+
+        assert (7 == pages.size());
+        assert (new HashSet<Object>(fromMaps.getGroups()).equals(new HashSet<Object>(fromPages.getGroups())));
+        for (Object state : fromMaps.getGroups()) {
+            assert (Arrays.equals(fromMaps.getValues(state), fromPages.getValues(state)));
+        }
+    }
+
+    private List<Map<String, Object>> buildSnapshots(int count) {
+        StandInLookbackServer data = new StandInLookbackServer(count);
+        List<Map<String, Object>> snapshots = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < count; i++) {
+            snapshots.add(data.buildSnapshot(i));
+        }
+        return snapshots;
+    }
+}
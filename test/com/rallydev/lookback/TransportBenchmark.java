@@ -0,0 +1,49 @@
+package com.rallydev.lookback;
+
+/**
+ * Measures per-page latency against a local StandInLookbackServer with the connection
+ * pool reused across pages versus a fresh connection for every page, which is what
+ * LookbackApi did before connections were pooled.
+ *
+ *      java com.rallydev.lookback.TransportBenchmark [pages] [pagesize]
+ */
+public class TransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int pagesize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        StandInLookbackServer server = new StandInLookbackServer(pages * pagesize).start();
+        try {
+            LookbackApi api = server.newApi();
+
+            run(api, pages, pagesize, false);
+            run(api, pages, pagesize, true);
+
+            System.out.println(String.format("fresh connection per page: %.1f us/page", run(api, pages, pagesize, false)));
+            System.out.println(String.format("pooled keep-alive:         %.1f us/page", run(api, pages, pagesize, true)));
+            api.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static double run(LookbackApi api, int pages, int pagesize, boolean pooled) {
+        LookbackResult result = api.newSnapshotQuery()
+                .addFindClause("_TypeHierarchy", "HierarchicalRequirement")
+                .setPagesize(pagesize)
+                .execute();
+
+        long begin = System.nanoTime();
+        int count = 1;
+        while (result.hasMorePages()) {
+            if (!pooled) {
+                api.close();
+            }
+            result = api.getQueryForNextPage(result).execute();
+            count++;
+        }
+        long elapsed = System.nanoTime() - begin;
+        return elapsed / 1000.0 / count;
+    }
+}